@@ -1,28 +1,60 @@
 package com.github.systeminvecklare.mcnp;
 
 import java.nio.ByteBuffer;
+import java.util.UUID;
 
 /*package-protected*/ class AccProtocolMessage extends BaseProtocolMessage {
-	public static final int ACC_MESSAGE_SIZE = BASE_SIZE+Long.BYTES;
+	public static final int ACC_MESSAGE_SIZE = BASE_SIZE+Long.BYTES*2+Short.BYTES*2;
 	
-	private final long checksum;
+	private final UUID uuid;
+	private final short partIndex;
+	private final short credit;
 
-	public AccProtocolMessage(long checksum) {
+	/**
+	 * @param partIndex index of the acced part, or 0 if the message is not multipart
+	 * @param credit how many more datagrams the receiver can queue, see {@link #toCredit(int)}
+	 */
+	public AccProtocolMessage(UUID uuid, int partIndex, int credit) {
 		super(BaseProtocolMessage.TYPE_ACC);
-		this.checksum = checksum;
+		this.uuid = uuid;
+		this.partIndex = (short) partIndex;
+		this.credit = toCredit(credit);
 	}
 
-	public AccProtocolMessage(IAccableProtocolMessage accableProtocolMessage, IAllocator allocator) {
-		this(accableProtocolMessage.getChecksum(allocator));
+	public AccProtocolMessage(IAccableProtocolMessage accableProtocolMessage, int credit) {
+		this(accableProtocolMessage.getUuid(), accableProtocolMessage.getAccPartIndex(), credit);
 	}
 	
-	public long getAccChecksum() {
-		return checksum;
+	public UUID getUuid() {
+		return uuid;
+	}
+	
+	public int getPartIndex() {
+		return Short.toUnsignedInt(partIndex);
+	}
+	
+	public int getCredit() {
+		return Short.toUnsignedInt(credit);
+	}
+	
+	/**
+	 * Credit is sent as an unsigned short, larger credits are capped.
+	 */
+	/*package-protected*/ static short toCredit(int credit) {
+		return (short) Math.max(0, Math.min(credit, 0xFFFF));
+	}
+	
+	@Override
+	public int getSize() {
+		return ACC_MESSAGE_SIZE;
 	}
 
 	@Override
-	protected void writeTo(ByteBuffer buffer) {
+	public void writeTo(ByteBuffer buffer) {
 		super.writeTo(buffer);
-		buffer.putLong(checksum);
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+		buffer.putShort(partIndex);
+		buffer.putShort(credit);
 	}
 }
@@ -13,6 +13,8 @@ import java.nio.ByteBuffer;
 	public static final byte TYPE_TIMESYNC_PROPOSAL_REQUEST = 3;
 	public static final byte TYPE_TIMESYNC_PROPOSAL_RESPONSE = 4;
 	public static final byte TYPE_CONNECTED = 5;
+	public static final byte TYPE_SACK = 6;
+	public static final byte TYPE_BATCH = 7;
 	
 	private final byte type;
 	
@@ -20,6 +22,11 @@ import java.nio.ByteBuffer;
 		this.type = type;
 	}
 
+	@Override
+	public final byte getType() {
+		return type;
+	}
+
 	@Override
 	public final void writeTo(DatagramPacket packet) {
 		packet.setLength(packet.getData().length-packet.getOffset()); //Set max length
@@ -30,12 +37,25 @@ import java.nio.ByteBuffer;
 		packet.setLength(buffer.position()-bufferStart);
 	}
 	
-	protected void writeTo(ByteBuffer buffer) {
+	@Override
+	public void writeTo(ByteBuffer buffer) {
 		buffer.put(type);
 	}
 	
 	@Override
-	public final void fireFor(IProtocolMessageListener listener) {
+	public int getSize() {
+		return BASE_SIZE;
+	}
+	
+	@Override
+	public void fireFor(IProtocolMessageListener listener) {
 		listener.onProtocolMessage(this);
 	}
+	
+	/**
+	 * Gives back any pooled memory the message was parsed into.
+	 */
+	@Override
+	public void release() {
+	}
 }
@@ -0,0 +1,75 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Several short connected messages sent in one datagram. Each message is written with its own length and header,
+ * so the receiver handles them one by one, with expiry and duplicate checks per message.
+ */
+/*package-protected*/ class BatchProtocolMessage extends BaseProtocolMessage {
+	public static final int BATCH_HEADER_SIZE = BASE_SIZE+Short.BYTES;
+	public static final int ENTRY_HEADER_SIZE = Short.BYTES;
+	public static final int MAX_MESSAGES = 0xFFFF;
+
+	private final List<ConnectedProtocolMessage> messages;
+
+	public BatchProtocolMessage(List<ConnectedProtocolMessage> messages) {
+		super(BaseProtocolMessage.TYPE_BATCH);
+		if(messages.size() > MAX_MESSAGES) {
+			throw new IllegalArgumentException("At most "+MAX_MESSAGES+" messages can be batched");
+		}
+		this.messages = messages;
+	}
+
+	public List<ConnectedProtocolMessage> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return the latest expiry time of the messages
+	 */
+	public long getExpiryTime() {
+		long expiryTime = Long.MIN_VALUE;
+		for(ConnectedProtocolMessage message : messages) {
+			expiryTime = Math.max(expiryTime, message.getExpiryTime());
+		}
+		return expiryTime;
+	}
+
+	@Override
+	public int getSize() {
+		int size = BATCH_HEADER_SIZE;
+		for(ConnectedProtocolMessage message : messages) {
+			size += ENTRY_HEADER_SIZE+message.getSize();
+		}
+		return size;
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		super.writeTo(buffer);
+		buffer.putShort((short) messages.size());
+		for(ConnectedProtocolMessage message : messages) {
+			buffer.putShort((short) message.getSize());
+			message.writeTo(buffer);
+		}
+	}
+
+	/**
+	 * Fires each message of the batch, in order.
+	 */
+	@Override
+	public void fireFor(IProtocolMessageListener listener) {
+		for(ConnectedProtocolMessage message : messages) {
+			listener.onProtocolMessage(message);
+		}
+	}
+
+	@Override
+	public void release() {
+		for(ConnectedProtocolMessage message : messages) {
+			message.release();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import com.github.systeminvecklare.mcnp.time.IClock;
+
+/**
+ * Remembers UUIDs in a pair of Bloom filters, one for each of the two expiry windows that have not passed yet.
+ * A UUID is added to the filter of the window its expiry time is in, and the filter of a window that has passed 
+ * is cleared and reused for the next one. Memory is fixed no matter how many messages are received.
+ * <p>
+ * Unknown UUIDs are taken for known ones at about the given rate, and their messages dropped. UUIDs that expire more than one window
+ * ahead are only remembered to the end of the next window. Lookups do not lock.
+ */
+/*package-protected*/ class BloomUuidCache implements IUuidCache {
+	private final IClock clock;
+	private final long windowDuration;
+	private final int hashes;
+	private final int bits;
+	private volatile Filter earlier;
+	private volatile Filter later;
+	private volatile boolean released = false;
+
+	/**
+	 * @param windowDuration in ms, should be at least how long before expiry messages are sent
+	 * @param expectedPerWindow how many UUIDs that expire within one window
+	 */
+	public BloomUuidCache(IClock clock, long windowDuration, int expectedPerWindow, double falsePositiveRate) {
+		if(windowDuration <= 0 || expectedPerWindow <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Invalid Bloom filter parameters");
+		}
+		this.clock = clock;
+		this.windowDuration = windowDuration;
+		//Both filters are asked, so each gets half of the false positive rate
+		double optimalBits = -expectedPerWindow*Math.log(falsePositiveRate/2)/(Math.log(2)*Math.log(2));
+		this.bits = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(64, Math.ceil(optimalBits)))-1) << 1;
+		this.hashes = (int) Math.max(1, Math.round(optimalBits/expectedPerWindow*Math.log(2)));
+		long window = window(clock.getTime());
+		this.earlier = new Filter(bits, window);
+		this.later = new Filter(bits, window+1);
+	}
+
+	@Override
+	public void addUuid(long expiryTime, UUID uuid) {
+		if(released) {
+			return;
+		}
+		long now = clock.getTime();
+		if(now <= expiryTime) {
+			synchronized (this) {
+				rotate(now);
+				Filter filter = window(expiryTime) <= earlier.window ? earlier : later;
+				filter.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), hashes);
+			}
+		}
+	}
+
+	@Override
+	public boolean hasUUID(UUID uuid) {
+		long mostSigBits = uuid.getMostSignificantBits();
+		long leastSigBits = uuid.getLeastSignificantBits();
+		return earlier.mightContain(mostSigBits, leastSigBits, hashes) || later.mightContain(mostSigBits, leastSigBits, hashes);
+	}
+
+	@Override
+	public void prune() {
+		long window = window(clock.getTime());
+		if(window > earlier.window) {
+			synchronized (this) {
+				rotate(clock.getTime());
+			}
+		}
+	}
+
+	/**
+	 * Moves on to the window of <code>now</code>, reusing the filters of windows that have passed.
+	 */
+	private void rotate(long now) {
+		long window = window(now);
+		if(window <= earlier.window) {
+			return;
+		}
+		Filter passed = earlier;
+		if(window == later.window) {
+			earlier = later;
+		} else {
+			//More than a window without prunes, so both have passed
+			later.reset(window);
+			earlier = later;
+		}
+		//Lookups that already have the passed filter only miss UUIDs that have expired
+		passed.reset(window+1);
+		later = passed;
+	}
+
+	private long window(long time) {
+		return Math.floorDiv(time, windowDuration);
+	}
+
+	@Override
+	public synchronized void release() {
+		released = true;
+		earlier.reset(earlier.window);
+		later.reset(later.window);
+	}
+
+	private static class Filter {
+		private final long[] words;
+		private final int mask;
+		private volatile long window;
+
+		public Filter(int bits, long window) {
+			this.words = new long[bits/Long.SIZE];
+			this.mask = bits-1;
+			this.window = window;
+		}
+
+		public void add(long most, long least, int hashes) {
+			long hash1 = mix(most);
+			long hash2 = mix(least) | 1;
+			for(int i = 0; i < hashes; ++i) {
+				int bit = (int) (hash1+i*hash2) & mask;
+				words[bit >>> 6] |= 1L << bit;
+			}
+		}
+
+		public boolean mightContain(long most, long least, int hashes) {
+			long hash1 = mix(most);
+			long hash2 = mix(least) | 1;
+			for(int i = 0; i < hashes; ++i) {
+				int bit = (int) (hash1+i*hash2) & mask;
+				if((words[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public void reset(long window) {
+			Arrays.fill(words, 0);
+			this.window = window;
+		}
+
+		private static long mix(long value) {
+			value = (value ^ (value >>> 33))*0xFF51AFD7ED558CCDL;
+			return value ^ (value >>> 33);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import com.github.systeminvecklare.mcnp.time.IClock;
+
+/**
+ * Writes the parts of bulk transfers to the sinks given by the bulk listener, in the order they arrive.
+ * Keeps one bit per part of every transfer in progress, and nothing of the data.
+ * <p>
+ * Transfers the listener ignores, or whose sink fails, are refused: their parts are not taken until the sender has given up on them.
+ */
+/*package-protected*/ class BulkReceiver implements IReleasable {
+	private static final int PART_SIZE = ConnectedProtocolMessage.MAX_BULK_PART_PAYLOAD_SIZE;
+
+	private final IClock clock;
+	private final IUuidCache uuidCache;
+	private final Map<UUID, Transfer> transfers = new HashMap<UUID, Transfer>();
+	private final Map<UUID, Long> refusedTransfers = new HashMap<UUID, Long>(); //Expiry time of their latest part
+	private boolean released = false;
+
+	public BulkReceiver(IClock clock, IUuidCache uuidCache) {
+		this.clock = clock;
+		this.uuidCache = uuidCache;
+	}
+
+	/**
+	 * @return if the part was taken, so that it may be acced. <code>false</code> if it was malformed or its transfer was refused.
+	 */
+	public synchronized boolean supply(ConnectedProtocolMessage part, IMcnpBulkListener listener) {
+		ConnectedProtocolMessage.BulkParams bulkParams = part.getBulkParams();
+		UUID transferId = bulkParams.transferId;
+		if(released) {
+			return false;
+		}
+		Long refusedUntil = refusedTransfers.get(transferId);
+		if(refusedUntil != null) {
+			refusedTransfers.put(transferId, Math.max(refusedUntil, part.getExpiryTime()));
+			return false;
+		}
+		if(uuidCache.hasUUID(transferId)) {
+			return true; //Already complete
+		}
+		long transferLength = bulkParams.transferLength;
+		long position = bulkParams.segmentOffset+part.getPartIndex()*(long) PART_SIZE;
+		ByteArray payload = part.getPayload();
+		if(transferLength <= 0 || (transferLength-1)/PART_SIZE >= Integer.MAX_VALUE || bulkParams.segmentOffset%PART_SIZE != 0
+				|| position >= transferLength || payload.getLength() != Math.min(PART_SIZE, transferLength-position)) {
+			return false; //Malformed
+		}
+		Transfer transfer = transfers.get(transferId);
+		if(transfer == null) {
+			IMcnpBulkSink sink = listener.onTransferStarted(transferId, transferLength);
+			if(sink == null) {
+				//Ignored, parts that keep coming are refused until the sender gives up
+				refusedTransfers.put(transferId, part.getExpiryTime());
+				return false;
+			}
+			transfer = new Transfer(sink, transferLength);
+			transfers.put(transferId, transfer);
+		}
+		if(transferLength != transfer.length) {
+			return false;
+		}
+		transfer.expiryTime = Math.max(transfer.expiryTime, part.getExpiryTime());
+		int partIndex = (int) (position/PART_SIZE);
+		if(transfer.received.get(partIndex)) {
+			return true;
+		}
+		try {
+			transfer.sink.write(position, payload);
+			transfer.received.set(partIndex);
+			transfer.receivedParts++;
+			if(transfer.receivedParts == transfer.parts) {
+				transfer.sink.flush();
+				transfers.remove(transferId);
+				uuidCache.addUuid(transfer.expiryTime, transferId);
+				listener.onTransferComplete(transferId);
+			}
+			return true;
+		} catch (IOException e) {
+			transfers.remove(transferId);
+			refusedTransfers.put(transferId, transfer.expiryTime);
+			listener.onTransferAborted(transferId, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Aborts the transfers that have expired, and forgets the refused transfers that have.
+	 */
+	public synchronized void prune(IMcnpBulkListener listener) {
+		long now = clock.getTime();
+		Iterator<Long> refusedIterator = refusedTransfers.values().iterator();
+		while(refusedIterator.hasNext()) {
+			if(refusedIterator.next() < now) {
+				refusedIterator.remove();
+			}
+		}
+		Iterator<Entry<UUID, Transfer>> iterator = transfers.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Entry<UUID, Transfer> entry = iterator.next();
+			if(entry.getValue().expiryTime < now) {
+				iterator.remove();
+				if(listener != null) {
+					listener.onTransferAborted(entry.getKey(), null);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void release() {
+		released = true;
+		transfers.clear();
+		refusedTransfers.clear();
+	}
+
+	private static class Transfer {
+		private final IMcnpBulkSink sink;
+		private final long length;
+		private final int parts;
+		private final BitSet received;
+		private int receivedParts = 0;
+		private long expiryTime = Long.MIN_VALUE;
+
+		public Transfer(IMcnpBulkSink sink, long length) {
+			this.sink = sink;
+			this.length = length;
+			this.parts = (int) ((length+PART_SIZE-1)/PART_SIZE);
+			this.received = new BitSet(parts);
+		}
+	}
+}
@@ -2,12 +2,14 @@ package com.github.systeminvecklare.mcnp;
 
 import java.io.ByteArrayInputStream;
 import java.net.DatagramPacket;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.zip.Checksum;
 
 public final class ByteArray {
-	private final byte[] data;
+	private final byte[] data; //null when off-heap
+	private final ByteBuffer memory; //Direct memory when off-heap, otherwise null
 	private final int offset;
 	private final int length;
 	
@@ -24,11 +26,46 @@ public final class ByteArray {
 			throw new ArrayIndexOutOfBoundsException();
 		}
 		this.data = data;
+		this.memory = null;
 		this.offset = offset;
 		this.length = length;
 	}
 	
+	/**
+	 * Wraps the remaining bytes of the buffer without copying them. 
+	 * A direct buffer gives a ByteArray in off-heap memory, which can be sent but not put in a {@link DatagramPacket}.
+	 */
+	public ByteArray(ByteBuffer buffer) {
+		if(buffer.hasArray()) {
+			this.data = buffer.array();
+			this.memory = null;
+			this.offset = buffer.arrayOffset()+buffer.position();
+		} else {
+			this.data = null;
+			this.memory = buffer;
+			this.offset = buffer.position();
+		}
+		this.length = buffer.remaining();
+	}
+	
+	/*package-protected*/ ByteArray(ByteBuffer memory, int offset, int length) {
+		if(length+offset > memory.capacity()) {
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		this.data = null;
+		this.memory = memory;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	public boolean isOffHeap() {
+		return data == null;
+	}
+	
 	public ByteArrayInputStream createInputStream() {
+		if(data == null) {
+			return new ByteArrayInputStream(toBytes());
+		}
 		return new ByteArrayInputStream(data, offset, length);
 	}
 	
@@ -36,24 +73,42 @@ public final class ByteArray {
 		if(byteArray.length < this.length) {
 			throw new ArrayIndexOutOfBoundsException();
 		}
-		System.arraycopy(this.data, this.offset, byteArray.data, byteArray.offset, this.length);
+		if(this.data != null && byteArray.data != null) {
+			System.arraycopy(this.data, this.offset, byteArray.data, byteArray.offset, this.length);
+		} else {
+			byteArray.view().put(this.view());
+		}
 	}
 	
 	public void copyFrom(ByteArray byteArray) {
 		if(this.length < byteArray.length) {
 			throw new ArrayIndexOutOfBoundsException();
 		}
-		System.arraycopy(byteArray.data, byteArray.offset, this.data, this.offset, byteArray.length);
+		if(this.data != null && byteArray.data != null) {
+			System.arraycopy(byteArray.data, byteArray.offset, this.data, this.offset, byteArray.length);
+		} else {
+			this.view().put(byteArray.view());
+		}
 	}
 	
 	public static void copy(ByteArray source, int sourcePos, ByteArray dest, int destPos, int length) {
 		if(source.length < length || dest.length < length) {
 			throw new ArrayIndexOutOfBoundsException();
 		}
-		System.arraycopy(source.data, source.offset+sourcePos, dest.data, dest.offset+destPos, length);
+		if(source.data != null && dest.data != null) {
+			System.arraycopy(source.data, source.offset+sourcePos, dest.data, dest.offset+destPos, length);
+		} else {
+			source.subArray(sourcePos, length).copyTo(dest.subArray(destPos, length));
+		}
 	}
 	
 	public ByteBuffer createByteBuffer() {
+		if(data == null) {
+			ByteBuffer buffer = memory.duplicate();
+			buffer.limit(offset+length);
+			buffer.position(offset);
+			return buffer;
+		}
 		return ByteBuffer.wrap(data, offset, length);
 	}
 	
@@ -65,10 +120,16 @@ public final class ByteArray {
 		if(this.length < offset+length) {
 			throw new ArrayIndexOutOfBoundsException();
 		}
+		if(data == null) {
+			return new ByteArray(this.memory, this.offset+offset, length);
+		}
 		return new ByteArray(this.data, this.offset+offset, length);
 	}
 
 	public DatagramPacket createDatagramPacket() {
+		if(data == null) {
+			throw new UnsupportedOperationException("Off-heap memory can not back a DatagramPacket");
+		}
 		return new DatagramPacket(data, offset, length);
 	}
 
@@ -79,18 +140,55 @@ public final class ByteArray {
 	}
 
 	public void putIn(ByteBuffer buffer) {
-		buffer.put(data, offset, length);
+		if(data == null) {
+			buffer.put(view());
+		} else {
+			buffer.put(data, offset, length);
+		}
 	}
 
 	public void getFrom(ByteBuffer buffer) {
-		buffer.get(data, offset, length);
+		if(data == null) {
+			if(buffer.remaining() < length) {
+				throw new BufferUnderflowException();
+			}
+			ByteBuffer source = buffer.duplicate();
+			source.limit(source.position()+length);
+			view().put(source);
+			buffer.position(buffer.position()+length);
+		} else {
+			buffer.get(data, offset, length);
+		}
 	}
 
 	public String createString(Charset charset) {
+		if(data == null) {
+			return new String(toBytes(), charset);
+		}
 		return new String(data, offset, length, charset);
 	}
 
 	public void updateChecksum(Checksum checksum) {
-		checksum.update(data, offset, length);
+		if(data == null) {
+			checksum.update(view());
+		} else {
+			checksum.update(data, offset, length);
+		}
+	}
+	
+	/**
+	 * @return a buffer of exactly this memory, with position 0
+	 */
+	private ByteBuffer view() {
+		if(data == null) {
+			return createByteBuffer().slice();
+		}
+		return ByteBuffer.wrap(data, offset, length).slice();
+	}
+	
+	private byte[] toBytes() {
+		byte[] bytes = new byte[length];
+		view().get(bytes);
+		return bytes;
 	}
 }
@@ -0,0 +1,241 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to the blocking datagram receiver of {@link McnpServerSocket}.
+ * <p>
+ * A single selector thread drains the channel in batches and copies each datagram
+ * into the work queue of the client it came from. The queues are drained on a pool of worker
+ * threads, at most one worker per client at a time, so a slow subscriber only delays its own client.
+ */
+/*package-protected*/ class ChannelDatagramReceiver implements IDatagramReceiver, IReleasable {
+	private static final int MAX_QUEUED_DATAGRAMS_PER_CLIENT = 256;
+	private static final int MAX_DATAGRAMS_PER_DRAIN = 32;
+	private static final int RECEIVE_BUFFER_SIZE = UdpUtil.MAX_UDP_PAYLOAD*4;
+	private static final int MAX_DATAGRAMS_PER_WAKEUP = 256;
+
+	private final Map<McnpAddress, ClientLane> lanes = new HashMap<McnpAddress, ClientLane>();
+	private final Queue<IDatagramSubscriber> acceptors = new LinkedList<IDatagramSubscriber>();
+	private final ChannelDatagramSource datagramSource;
+	private final IAllocator allocator;
+	private final ThreadPoolExecutor workers;
+	private final AutoLooper thread;
+	private final DatagramBatch receiveBatch = new DatagramBatch(RECEIVE_BUFFER_SIZE, MAX_DATAGRAMS_PER_WAKEUP, true); //Only used by the selector thread
+	private volatile boolean released = false;
+
+	public ChannelDatagramReceiver(DatagramChannel channel, IAllocator allocator) throws IOException {
+		this(channel, allocator, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ChannelDatagramReceiver(DatagramChannel channel, IAllocator allocator, int workerThreads) throws IOException {
+		this.allocator = allocator;
+		this.datagramSource = new ChannelDatagramSource(channel);
+
+		final AtomicInteger workerIndex = new AtomicInteger(0);
+		this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "mcnp-receive-worker-"+workerIndex.incrementAndGet());
+			}
+		});
+		this.workers.allowCoreThreadTimeOut(true);
+
+		AutoLooper.IRunCondition runCondition = new AutoLooper.IRunCondition() {
+			@Override
+			public boolean isMet() {
+				synchronized (ChannelDatagramReceiver.this) {
+					return !(lanes.isEmpty() && acceptors.isEmpty()) && !released;
+				}
+			}
+		};
+
+		this.thread = new AutoLooper(new Runnable() {
+			@Override
+			public void run() {
+				receiveBatch.clear();
+				try {
+					datagramSource.receive(receiveBatch);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				for(int i = 0; i < receiveBatch.size(); ++i) {
+					onDatagram(receiveBatch.getAddress(i), receiveBatch.getDatagram(i));
+				}
+			}
+		}, runCondition) {
+			@Override
+			protected boolean onRuntimeException(RuntimeException e) {
+				if(released || e instanceof ClosedSelectorException) {
+					return true;
+				}
+				if(e.getCause() instanceof IOException) {
+					e.printStackTrace();
+					return true;
+				}
+				return super.onRuntimeException(e);
+			}
+		};
+	}
+
+	private void onDatagram(McnpAddress sender, ByteBuffer datagram) {
+		ClientLane lane;
+		synchronized (this) {
+			lane = lanes.get(sender);
+			if(lane == null) {
+				if(!acceptors.isEmpty()) {
+					lane = new ClientLane(sender, acceptors.poll());
+					lanes.put(sender, lane);
+				}
+			}
+		}
+		if(lane != null) {
+			ReferenceCountedByteArray packetMemory = new ReferenceCountedByteArray(allocator.obtain(datagram.remaining()));
+			packetMemory.getByteArray().getFrom(datagram);
+			DatagramPacket packet = packetMemory.getByteArray().createDatagramPacket();
+			sender.stamp(packet);
+			lane.queue(new QueuedDatagram(packet, packetMemory));
+		}
+	}
+
+	private void checkCondition() {
+		thread.checkCondition();
+		datagramSource.wakeup(); //Make sure a stopped thread does not stay in select()
+	}
+
+	@Override
+	public synchronized void subscribeAccept(IDatagramSubscriber subscriber) {
+		acceptors.add(subscriber);
+		checkCondition();
+	}
+
+	@Override
+	public synchronized void unsubscribeAccept(IDatagramSubscriber subscriber) {
+		acceptors.remove(subscriber);
+		checkCondition();
+	}
+
+	@Override
+	public synchronized void subscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber) {
+		if(lanes.containsKey(fromAddress)) {
+			throw new IllegalArgumentException(fromAddress+" already listened to");
+		}
+		lanes.put(fromAddress, new ClientLane(fromAddress, subscriber));
+		checkCondition();
+	}
+
+	@Override
+	public synchronized void replaceSubscriber(McnpAddress fromAddress, IDatagramSubscriber oldSubscriber, IDatagramSubscriber newSubscriber) {
+		ClientLane lane = lanes.get(fromAddress);
+		if(lane == null || lane.subscriber != oldSubscriber) {
+			throw new IllegalArgumentException("Subscriber mismatch when replacing");
+		}
+		lane.subscriber = newSubscriber;
+		checkCondition();
+	}
+
+	@Override
+	public synchronized void unsubscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber) {
+		ClientLane lane = lanes.remove(fromAddress);
+		if(lane != null) {
+			lane.subscriber = null;
+		}
+		checkCondition();
+	}
+
+	@Override
+	public synchronized void release() {
+		released = true;
+		checkCondition();
+		thread.release();
+		workers.shutdown();
+		datagramSource.release();
+	}
+
+	private static class QueuedDatagram {
+		private final DatagramPacket packet;
+		private final ReferenceCountedByteArray packetMemory;
+
+		public QueuedDatagram(DatagramPacket packet, ReferenceCountedByteArray packetMemory) {
+			this.packet = packet;
+			this.packetMemory = packetMemory;
+		}
+	}
+
+	private class ClientLane implements Runnable {
+		private final McnpAddress clientAddress;
+		private volatile IDatagramSubscriber subscriber;
+		private final Queue<QueuedDatagram> queue = new ConcurrentLinkedQueue<QueuedDatagram>();
+		private final AtomicInteger queued = new AtomicInteger(0);
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		public ClientLane(McnpAddress clientAddress, IDatagramSubscriber subscriber) {
+			this.clientAddress = clientAddress;
+			this.subscriber = subscriber;
+		}
+
+		public void queue(QueuedDatagram datagram) {
+			if(queued.incrementAndGet() > MAX_QUEUED_DATAGRAMS_PER_CLIENT) {
+				//Client is not keeping up. Treat as packet loss.
+				queued.decrementAndGet();
+				datagram.packetMemory.release();
+				return;
+			}
+			queue.add(datagram);
+			schedule(workers);
+		}
+
+		private void schedule(Executor executor) {
+			if(scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					//Receiver released
+					scheduled.set(false);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			for(int i = 0; i < MAX_DATAGRAMS_PER_DRAIN; ++i) {
+				QueuedDatagram datagram = queue.poll();
+				if(datagram == null) {
+					break;
+				}
+				queued.decrementAndGet();
+				try {
+					IDatagramSubscriber subscriberSnapshot = subscriber;
+					if(subscriberSnapshot != null) {
+						subscriberSnapshot.onDatagramPacket(clientAddress, datagram.packet, datagram.packetMemory);
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				} finally {
+					datagram.packetMemory.release();
+				}
+			}
+			scheduled.set(false);
+			if(!queue.isEmpty()) {
+				schedule(workers);
+			}
+		}
+	}
+}
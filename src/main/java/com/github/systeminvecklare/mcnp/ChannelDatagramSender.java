@@ -0,0 +1,90 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends through a non-blocking channel, which can not take a datagram while its send buffer is full.
+ * Such a datagram is sent again once the channel is writable, waiting at most {@value #MAX_WRITE_WAIT} ms,
+ * after which it is dropped and counted.
+ */
+/*package-protected*/ class ChannelDatagramSender implements IDatagramSender, IReleasable {
+	private static final long MAX_WRITE_WAIT = 100;
+
+	private final DatagramChannel channel;
+	private final Selector writeSelector; //Waited in by one sender at a time, holding it
+	private final AtomicLong droppedDatagrams;
+	private volatile boolean released = false;
+
+	/**
+	 * @param droppedDatagrams counts datagrams that could not be sent in time
+	 */
+	public ChannelDatagramSender(DatagramChannel channel, AtomicLong droppedDatagrams) throws IOException {
+		this.channel = channel;
+		this.droppedDatagrams = droppedDatagrams;
+		this.writeSelector = Selector.open();
+		channel.configureBlocking(false);
+		channel.register(writeSelector, SelectionKey.OP_WRITE);
+	}
+
+	@Override
+	public void send(DatagramPacket packet) throws IOException {
+		send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), new InetSocketAddress(packet.getAddress(), packet.getPort()));
+	}
+
+	@Override
+	public void send(ByteBuffer datagram, McnpAddress receiver) throws IOException {
+		send(datagram, receiver.toSocketAddress());
+	}
+
+	@Override
+	public void send(DatagramBatch batch) throws IOException {
+		for(int i = 0; i < batch.size(); ++i) {
+			send(batch.getDatagram(i), batch.getAddress(i).toSocketAddress());
+		}
+	}
+
+	private void send(ByteBuffer datagram, SocketAddress target) throws IOException {
+		long giveUpTime = 0;
+		while(channel.send(datagram, target) == 0 && datagram.hasRemaining()) {
+			//The send buffer is full
+			long now = System.currentTimeMillis();
+			if(giveUpTime == 0) {
+				giveUpTime = now+MAX_WRITE_WAIT;
+			} else if(now >= giveUpTime || released) {
+				droppedDatagrams.incrementAndGet();
+				return;
+			}
+			awaitWritable(giveUpTime-now);
+		}
+	}
+
+	private void awaitWritable(long timeout) throws IOException {
+		synchronized (writeSelector) {
+			try {
+				writeSelector.select(timeout);
+				writeSelector.selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				//Released while waiting
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		released = true;
+		try {
+			writeSelector.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Drains a non-blocking channel until it is empty or the batch is full, and waits in a selector when there is nothing to read.
+ * One wakeup can so take in any number of datagrams, without a system call more than needed per datagram.
+ */
+/*package-protected*/ class ChannelDatagramSource implements IDatagramSource, IReleasable {
+	private final DatagramChannel channel;
+	private final Selector selector;
+
+	public ChannelDatagramSource(DatagramChannel channel) throws IOException {
+		this.channel = channel;
+		this.selector = Selector.open();
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	@Override
+	public void receive(DatagramBatch batch) throws IOException {
+		if(drain(batch) == 0) {
+			selector.select();
+			selector.selectedKeys().clear();
+			drain(batch);
+		}
+	}
+
+	private int drain(DatagramBatch batch) throws IOException {
+		int received = 0;
+		while(batch.hasRoom(UdpUtil.MAX_UDP_PAYLOAD)) {
+			InetSocketAddress source = (InetSocketAddress) channel.receive(batch.startDatagram());
+			if(source == null) {
+				break;
+			}
+			batch.endDatagram(new McnpAddress(source.getAddress(), source.getPort()));
+			received++;
+		}
+		return received;
+	}
+
+	@Override
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	@Override
+	public void release() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
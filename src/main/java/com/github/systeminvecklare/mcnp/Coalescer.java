@@ -0,0 +1,145 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Packs short messages that are sent close together into one datagram.
+ * <p>
+ * Messages are held back until the next one would not fit in <code>maxDatagramSize</code> bytes, or until
+ * <code>maxDelay</code> ms has passed since the first of them, and are then sent as one {@link BatchProtocolMessage}.
+ * A message that is alone when flushed is sent as it is. A copy of a pending message (see {@link McnpSocket#sendBurst(McnpMessage, int)})
+ * flushes the batch first, so that copies never share a datagram and are lost together.
+ */
+/*package-protected*/ class Coalescer implements IReleasable {
+	private final IDatagramOutput output;
+	private final HashedWheelTimer timer;
+	private final int maxDatagramSize;
+	private final long maxDelay;
+	private List<ConnectedProtocolMessage> pending = new ArrayList<ConnectedProtocolMessage>(); //Guarded by this
+	private int pendingSize = BatchProtocolMessage.BATCH_HEADER_SIZE; //Guarded by this
+	private long batchNumber = 0; //Guarded by this
+
+	/**
+	 * @param maxDatagramSize in bytes, at most {@link UdpUtil#MAX_UDP_PAYLOAD}
+	 * @param maxDelay in ms
+	 */
+	public Coalescer(IDatagramOutput output, HashedWheelTimer timer, int maxDatagramSize, long maxDelay) {
+		if(maxDatagramSize > UdpUtil.MAX_UDP_PAYLOAD) {
+			throw new IllegalArgumentException("Datagram size must be at most "+UdpUtil.MAX_UDP_PAYLOAD);
+		}
+		this.output = output;
+		this.timer = timer;
+		this.maxDatagramSize = maxDatagramSize;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Sends the short message in the current batch. The payload must not change until it has been sent.
+	 *
+	 * @param copy if an earlier copy of the message may still be pending
+	 */
+	public void send(ConnectedProtocolMessage message, boolean copy) throws IOException {
+		int entrySize = BatchProtocolMessage.ENTRY_HEADER_SIZE+message.getSize();
+		if(BatchProtocolMessage.BATCH_HEADER_SIZE+entrySize > maxDatagramSize) {
+			//Too big to share a datagram. Flushed first to keep the order.
+			flush();
+			output.send(message, message.getExpiryTime());
+			return;
+		}
+		IProtocolMessage full = null;
+		synchronized (this) {
+			if(pendingSize+entrySize > maxDatagramSize || pending.size() == BatchProtocolMessage.MAX_MESSAGES || (copy && isPending(message.getUuid()))) {
+				full = takePending();
+			}
+			pending.add(message);
+			pendingSize += entrySize;
+			if(pending.size() == 1) {
+				final long scheduledBatch = batchNumber;
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flush(scheduledBatch);
+						} catch (IOException e) {
+							e.printStackTrace();
+							//TODO handle better
+						}
+					}
+				}, maxDelay);
+			}
+		}
+		if(full != null) {
+			output.send(full, getExpiryTime(full));
+		}
+	}
+
+	/**
+	 * Sends what is pending right away.
+	 */
+	public void flush() throws IOException {
+		IProtocolMessage datagram;
+		synchronized (this) {
+			datagram = takePending();
+		}
+		if(datagram != null) {
+			output.send(datagram, getExpiryTime(datagram));
+		}
+	}
+
+	private void flush(long scheduledBatch) throws IOException {
+		IProtocolMessage datagram;
+		synchronized (this) {
+			if(scheduledBatch != batchNumber) {
+				//That batch has already been sent
+				return;
+			}
+			datagram = takePending();
+		}
+		if(datagram != null) {
+			output.send(datagram, getExpiryTime(datagram));
+		}
+	}
+
+	private boolean isPending(UUID uuid) {
+		for(ConnectedProtocolMessage pendingMessage : pending) {
+			if(pendingMessage.getUuid().equals(uuid)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private IProtocolMessage takePending() {
+		if(pending.isEmpty()) {
+			return null;
+		}
+		List<ConnectedProtocolMessage> batch = pending;
+		pending = new ArrayList<ConnectedProtocolMessage>();
+		pendingSize = BatchProtocolMessage.BATCH_HEADER_SIZE;
+		batchNumber++;
+		return batch.size() == 1 ? batch.get(0) : new BatchProtocolMessage(batch);
+	}
+
+	private static long getExpiryTime(IProtocolMessage datagram) {
+		if(datagram instanceof BatchProtocolMessage) {
+			return ((BatchProtocolMessage) datagram).getExpiryTime();
+		}
+		return ((ConnectedProtocolMessage) datagram).getExpiryTime();
+	}
+
+	@Override
+	public void release() {
+		try {
+			flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public interface IDatagramOutput {
+		void send(IProtocolMessage datagram, long expiryTime) throws IOException;
+	}
+}
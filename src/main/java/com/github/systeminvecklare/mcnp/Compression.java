@@ -0,0 +1,64 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Encodes payloads of at least <code>threshold</code> bytes with a codec, when that makes them smaller.
+ * An encoded payload starts with the id of the codec and the length of the payload before it was encoded.
+ */
+/*package-protected*/ class Compression {
+	private static final int HEADER_SIZE = 1+Integer.BYTES;
+	private static final int MAX_RATIO = 1100; //A little above what deflate can reach, so that a small datagram can not claim a huge payload
+	
+	private final IMcnpCodec codec;
+	private final int threshold;
+	
+	public Compression(IMcnpCodec codec, int threshold) {
+		this.codec = codec;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * @return the encoded payload, or <code>null</code> if it should be sent as it is
+	 */
+	public ByteArray encode(ByteArray payload) {
+		if(payload.getLength() < threshold || payload.getLength() <= HEADER_SIZE+1) {
+			return null;
+		}
+		ByteArray target = new ByteArray(payload.getLength()-1);
+		int written = codec.encode(payload, target.subArray(HEADER_SIZE, target.getLength()-HEADER_SIZE));
+		if(written < 0) {
+			return null;
+		}
+		ByteBuffer header = target.createByteBuffer();
+		header.put(codec.getId());
+		header.putInt(payload.getLength());
+		return target.subArray(0, HEADER_SIZE+written);
+	}
+	
+	/**
+	 * @param codecs to decode with, by id
+	 * @throws IOException if the payload was encoded by a codec that is not among <code>codecs</code>, or is not valid
+	 */
+	public static ByteArray decode(ByteArray encoded, Map<Byte, IMcnpCodec> codecs) throws IOException {
+		if(encoded.getLength() < HEADER_SIZE) {
+			throw new IOException("Encoded payload is too short");
+		}
+		ByteBuffer header = encoded.createByteBuffer();
+		byte codecId = header.get();
+		int length = header.getInt();
+		ByteArray data = encoded.subArray(HEADER_SIZE, encoded.getLength()-HEADER_SIZE);
+		IMcnpCodec codec = codecs.get(codecId);
+		if(codec == null) {
+			throw new IOException("Payload was encoded with unknown codec "+codecId);
+		}
+		if(length < 0 || length > (long) data.getLength()*MAX_RATIO) {
+			throw new IOException("Invalid decoded length "+length);
+		}
+		ByteArray decoded = new ByteArray(length);
+		codec.decode(data, decoded);
+		return decoded;
+	}
+}
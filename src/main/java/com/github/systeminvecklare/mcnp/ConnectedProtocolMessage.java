@@ -2,10 +2,6 @@ package com.github.systeminvecklare.mcnp;
 
 import java.nio.ByteBuffer;
 import java.util.UUID;
-import java.util.zip.Adler32;
-import java.util.zip.Checksum;
-
-import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
 
 //TODO
 //TODO The connected messages should all contain the following: 
@@ -16,7 +12,7 @@ import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
 //TODO (5. IF multipart, then partIndex and parts.)
 //TODO 6. payload
 
-/*package-protected*/ class ConnectedProtocolMessage extends BaseProtocolMessage implements IAccableProtocolMessage {
+/*package-protected*/ class ConnectedProtocolMessage extends BaseProtocolMessage implements IAccableProtocolMessage, MessageQueue.IQueueable {
 	public static final class MultiPartParams {
 		/*package-protected*/ static final int SIZE = Short.BYTES*2;
 		
@@ -29,43 +25,119 @@ import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
 		}
 	}
 	
+	/**
+	 * Parameters of multipart messages with forward error correction. The parts after the first <code>parts</code> 
+	 * are repair parts, and any <code>parts</code> of all the parts are enough to rebuild the message.
+	 */
+	public static final class FecParams {
+		/*package-protected*/ static final int SIZE = Short.BYTES+Integer.BYTES;
+		
+		public final short repairParts;
+		public final int messageLength;
+		
+		public FecParams(int repairParts, int messageLength) {
+			this.repairParts = (short) repairParts;
+			this.messageLength = messageLength;
+		}
+	}
+	
+	/**
+	 * Parameters of the parts of a bulk transfer. Every multipart message is one segment of the transfer, and its parts are
+	 * written at <code>segmentOffset+partIndex*MAX_BULK_PART_PAYLOAD_SIZE</code> of the transfer.
+	 */
+	public static final class BulkParams {
+		/*package-protected*/ static final int SIZE = Long.BYTES*4;
+		
+		public final UUID transferId;
+		public final long segmentOffset;
+		public final long transferLength;
+		
+		public BulkParams(UUID transferId, long segmentOffset, long transferLength) {
+			this.transferId = transferId;
+			this.segmentOffset = segmentOffset;
+			this.transferLength = transferLength;
+		}
+	}
+	
 	public static final int CONNECTED_SIZE = BASE_SIZE+Long.BYTES+1+Long.BYTES*2+Integer.BYTES;
 	public static final int MAX_SHORT_PAYLOAD_SIZE = UdpUtil.MAX_UDP_PAYLOAD - CONNECTED_SIZE;
 	public static final int MAX_MULTIPART_PART_PAYLOAD_SIZE = UdpUtil.MAX_UDP_PAYLOAD - CONNECTED_SIZE - MultiPartParams.SIZE;
+	public static final int MAX_FEC_PART_PAYLOAD_SIZE = MAX_MULTIPART_PART_PAYLOAD_SIZE - FecParams.SIZE;
+	public static final int MAX_BULK_PART_PAYLOAD_SIZE = MAX_MULTIPART_PART_PAYLOAD_SIZE - BulkParams.SIZE;
 	
 	public static final byte FLAG_ACCED = 0b00000001;
 	public static final byte FLAG_MULTIPART = 0b00000010;
+	public static final byte FLAG_FEC = 0b00000100;
+	public static final byte FLAG_BULK = 0b00001000;
+	public static final byte FLAG_COMPRESSED = 0b00010000;
 	
 	private final long expiryTime;
 	private final byte flags;
 	private final UUID uuid;
 	private final MultiPartParams multiPartParams;
+	private final FecParams fecParams;
+	private final BulkParams bulkParams;
 	private final ByteArray payload;
+	private final ReferenceCountedByteArray payloadMemory;
 	
 	public ConnectedProtocolMessage(long expiryTime, byte flags, UUID uuid, ByteArray payload) {
 		this(expiryTime, flags, uuid, null, payload);
 	}
 
 	public ConnectedProtocolMessage(long expiryTime, byte flags, UUID uuid, MultiPartParams multiPartParams, ByteArray payload) {
+		this(expiryTime, flags, uuid, multiPartParams, payload, null);
+	}
+	
+	/**
+	 * @param payloadMemory pooled memory that <code>payload</code> is a view of. The message takes over one reference to it.
+	 */
+	public ConnectedProtocolMessage(long expiryTime, byte flags, UUID uuid, MultiPartParams multiPartParams, ByteArray payload, ReferenceCountedByteArray payloadMemory) {
+		this(expiryTime, flags, uuid, multiPartParams, null, payload, payloadMemory);
+	}
+	
+	public ConnectedProtocolMessage(long expiryTime, byte flags, UUID uuid, MultiPartParams multiPartParams, FecParams fecParams, ByteArray payload, ReferenceCountedByteArray payloadMemory) {
+		this(expiryTime, flags, uuid, multiPartParams, fecParams, null, payload, payloadMemory);
+	}
+	
+	public ConnectedProtocolMessage(long expiryTime, byte flags, UUID uuid, MultiPartParams multiPartParams, FecParams fecParams, BulkParams bulkParams, ByteArray payload, ReferenceCountedByteArray payloadMemory) {
 		super(BaseProtocolMessage.TYPE_CONNECTED);
 		this.expiryTime = expiryTime;
 		this.flags = flags;
 		this.uuid = uuid;
 		this.multiPartParams = multiPartParams;
-		int maxPayloadSize = isMultipart(flags) ? MAX_MULTIPART_PART_PAYLOAD_SIZE : MAX_SHORT_PAYLOAD_SIZE;
+		this.fecParams = fecParams;
+		this.bulkParams = bulkParams;
+		int maxPayloadSize = isFec(flags) ? MAX_FEC_PART_PAYLOAD_SIZE : isBulk(flags) ? MAX_BULK_PART_PAYLOAD_SIZE : isMultipart(flags) ? MAX_MULTIPART_PART_PAYLOAD_SIZE : MAX_SHORT_PAYLOAD_SIZE;
 		if(payload.getLength() > maxPayloadSize) {
 			throw new IllegalArgumentException("Payload must be less than or equal to "+maxPayloadSize);
 		}
 		if(isMultipart(flags) != (multiPartParams != null)) {
 			throw new IllegalArgumentException(isMultipart(flags) ? "Missing multipart parameters" : "Got multipart parameters for short message");
 		}
+		if(isFec(flags) != (fecParams != null) || (isFec(flags) && !isMultipart(flags))) {
+			throw new IllegalArgumentException("Error correction parameters must be given for, and only for, multipart messages with the error correction flag");
+		}
+		if(isBulk(flags) != (bulkParams != null) || (isBulk(flags) && (!isMultipart(flags) || isFec(flags)))) {
+			throw new IllegalArgumentException("Bulk parameters must be given for, and only for, multipart messages with the bulk flag and without error correction");
+		}
 		this.payload = payload;
+		this.payloadMemory = payloadMemory;
 	}
 
+	@Override
 	public long getExpiryTime() {
 		return expiryTime;
 	}
 	
+	/**
+	 * Acced messages are acced when queued, so they must then be delivered.
+	 */
+	@Override
+	public boolean isDroppable() {
+		return !isAcced();
+	}
+	
+	@Override
 	public UUID getUuid() {
 		return uuid;
 	}
@@ -93,53 +165,138 @@ import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
 		return Short.toUnsignedInt(multiPartParams.parts);
 	}
 	
+	public boolean isFec() {
+		return isFec(flags);
+	}
+	
+	/**
+	 * @return how many repair parts follow the <code>getParts()</code> data parts
+	 */
+	public int getRepairParts() {
+		if(!isFec()) {
+			throw new UnsupportedOperationException("getRepairParts() may only be called on messages with error correction");
+		}
+		return Short.toUnsignedInt(fecParams.repairParts);
+	}
+	
+	public int getMessageLength() {
+		if(!isFec()) {
+			throw new UnsupportedOperationException("getMessageLength() may only be called on messages with error correction");
+		}
+		return fecParams.messageLength;
+	}
+	
+	public boolean isBulk() {
+		return isBulk(flags);
+	}
+	
+	/**
+	 * @return if the payload, of all parts together for multipart messages, was encoded by the codec of the sender
+	 */
+	public boolean isCompressed() {
+		return (flags & FLAG_COMPRESSED) != 0;
+	}
+	
+	public BulkParams getBulkParams() {
+		if(!isBulk()) {
+			throw new UnsupportedOperationException("getBulkParams() may only be called on parts of bulk transfers");
+		}
+		return bulkParams;
+	}
+	
 	public ByteArray getPayload() {
 		return payload;
 	}
 	
+	/**
+	 * @return the pooled memory behind the payload, or <code>null</code> if the payload is not pooled.
+	 */
+	public ReferenceCountedByteArray getPayloadMemory() {
+		return payloadMemory;
+	}
+	
+	public void retain() {
+		if(payloadMemory != null) {
+			payloadMemory.retain();
+		}
+	}
+	
 	@Override
-	public long getChecksum(IAllocator allocator) {
-		IBorrowedByteArray borrowedByteArray = allocator.obtain(getSize());
-		try {
-			ByteArray byteArray = borrowedByteArray.getByteArray();
-			this.writeTo(byteArray.createByteBuffer());
-			Checksum checksum = new Adler32();
-			//TODO Yes, very cool with check sum and stuff. Really. But maybe we should just wait for an acc on the UUID?
-			//     That would be safer as the chance of collision is 1/9223372036854775808 that of when using long.
-			//     Also, we wouldn't have to write the whole message and calculate checksum.
-			//     Also, we wouldn't need an allocator to calculate checksum.
-			//     Also, it aligns more with the rest of the protocol.  
-			byteArray.updateChecksum(checksum);
-			return checksum.getValue();
-		} finally {
-			borrowedByteArray.release();
+	public void release() {
+		if(payloadMemory != null) {
+			payloadMemory.release();
 		}
 	}
 	
-	private int getSize() { //TODO this should be added to all protocol messages
-		return CONNECTED_SIZE+(isMultipart() ? MultiPartParams.SIZE : 0)+payload.getLength();
+	@Override
+	public int getAccPartIndex() {
+		return isMultipart() ? getPartIndex() : 0;
+	}
+	
+	@Override
+	public int getSize() {
+		return CONNECTED_SIZE+(isMultipart() ? MultiPartParams.SIZE : 0)+(isFec() ? FecParams.SIZE : 0)+(isBulk() ? BulkParams.SIZE : 0)+payload.getLength();
 	}
 	
 	
 	@Override
-	protected void writeTo(ByteBuffer buffer) {
+	public void writeTo(ByteBuffer buffer) {
 		super.writeTo(buffer);
-		buffer.putLong(expiryTime);
-		buffer.put(flags);
-		buffer.putLong(uuid.getMostSignificantBits());
-		buffer.putLong(uuid.getLeastSignificantBits());
+		writeHeader(buffer, expiryTime, flags, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
 		if(isMultipart()) {
 			buffer.putShort(multiPartParams.partIndex);
 			buffer.putShort(multiPartParams.parts);
 		}
+		if(isFec()) {
+			buffer.putShort(fecParams.repairParts);
+			buffer.putInt(fecParams.messageLength);
+		}
+		if(isBulk()) {
+			buffer.putLong(bulkParams.transferId.getMostSignificantBits());
+			buffer.putLong(bulkParams.transferId.getLeastSignificantBits());
+			buffer.putLong(bulkParams.segmentOffset);
+			buffer.putLong(bulkParams.transferLength);
+		}
 		buffer.putInt(payload.getLength()); //TODO Need to check if max size will always be fitted in a short or char. if so use that instead of int.
 		payload.putIn(buffer);
 	}
 	
+	/**
+	 * Writes a short (not multipart) message without having to create it first. 
+	 * Writes exactly <code>CONNECTED_SIZE+payload.getLength()</code> bytes.
+	 */
+	/*package-protected*/ static void writeShortTo(ByteBuffer buffer, long expiryTime, byte flags, long uuidMostSigBits, long uuidLeastSigBits, ByteArray payload) {
+		if(isMultipart(flags)) {
+			throw new IllegalArgumentException("Got multipart flag for short message");
+		}
+		if(payload.getLength() > MAX_SHORT_PAYLOAD_SIZE) {
+			throw new IllegalArgumentException("Payload must be less than or equal to "+MAX_SHORT_PAYLOAD_SIZE);
+		}
+		buffer.put(TYPE_CONNECTED);
+		writeHeader(buffer, expiryTime, flags, uuidMostSigBits, uuidLeastSigBits);
+		buffer.putInt(payload.getLength());
+		payload.putIn(buffer);
+	}
+	
+	private static void writeHeader(ByteBuffer buffer, long expiryTime, byte flags, long uuidMostSigBits, long uuidLeastSigBits) {
+		buffer.putLong(expiryTime);
+		buffer.put(flags);
+		buffer.putLong(uuidMostSigBits);
+		buffer.putLong(uuidLeastSigBits);
+	}
+	
 	/*package-protected*/ static boolean isMultipart(byte flags) {
 		return (flags & FLAG_MULTIPART) != 0;
 	}
 	
+	private static boolean isFec(byte flags) {
+		return (flags & FLAG_FEC) != 0;
+	}
+	
+	private static boolean isBulk(byte flags) {
+		return (flags & FLAG_BULK) != 0;
+	}
+	
 	private static boolean isAcced(byte flags) {
 		return (flags & FLAG_ACCED) != 0;
 	}
@@ -0,0 +1,113 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Datagrams packed back to back in one buffer, each with the address it came from or goes to.
+ * Lets many datagrams be received per wakeup or sent per call by an {@link IDatagramSource} or {@link IDatagramSender}.
+ * <p>
+ * A datagram is added by writing it at the position of {@link #startDatagram()} and then calling {@link #endDatagram(McnpAddress)}.
+ */
+/*package-protected*/ class DatagramBatch {
+	private final ByteBuffer buffer;
+	private final ByteBuffer view;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final McnpAddress[] addresses;
+	private int count = 0;
+	private int start = -1;
+
+	/**
+	 * @param bufferSize in bytes, at least {@link UdpUtil#MAX_UDP_PAYLOAD} so that any datagram fits
+	 * @param direct if the datagrams should be kept in direct memory, which channels read into and send from without copying
+	 */
+	public DatagramBatch(int bufferSize, int maxDatagrams, boolean direct) {
+		if(bufferSize < UdpUtil.MAX_UDP_PAYLOAD || maxDatagrams < 1) {
+			throw new IllegalArgumentException("Batch must fit at least one max sized datagram");
+		}
+		this.buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		this.view = buffer.duplicate();
+		this.offsets = new int[maxDatagrams];
+		this.lengths = new int[maxDatagrams];
+		this.addresses = new McnpAddress[maxDatagrams];
+	}
+
+	public void clear() {
+		buffer.clear();
+		for(int i = 0; i < count; ++i) {
+			addresses[i] = null;
+		}
+		count = 0;
+		start = -1;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return if a datagram of <code>size</code> bytes can be added
+	 */
+	public boolean hasRoom(int size) {
+		return count < offsets.length && buffer.remaining() >= size;
+	}
+
+	/**
+	 * @return the buffer to write the next datagram into, from its position
+	 */
+	public ByteBuffer startDatagram() {
+		start = buffer.position();
+		return buffer;
+	}
+
+	/**
+	 * Adds what has been written since {@link #startDatagram()} as a datagram.
+	 */
+	public void endDatagram(McnpAddress address) {
+		if(start < 0) {
+			throw new IllegalStateException("No datagram started");
+		}
+		offsets[count] = start;
+		lengths[count] = buffer.position()-start;
+		addresses[count] = address;
+		count++;
+		start = -1;
+	}
+
+	public McnpAddress getAddress(int index) {
+		return addresses[index];
+	}
+
+	public int getOffset(int index) {
+		return offsets[index];
+	}
+
+	public int getLength(int index) {
+		return lengths[index];
+	}
+
+	/**
+	 * @return the backing array, for heap batches
+	 */
+	public byte[] array() {
+		return buffer.array();
+	}
+
+	public boolean isDirect() {
+		return buffer.isDirect();
+	}
+
+	/**
+	 * @return a view of the datagram, which is reused by the next call
+	 */
+	public ByteBuffer getDatagram(int index) {
+		view.clear();
+		view.position(offsets[index]);
+		view.limit(offsets[index]+lengths[index]);
+		return view;
+	}
+}
@@ -0,0 +1,100 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate without the zlib header, with one {@link Deflater} and {@link Inflater} per thread.
+ */
+public class DeflateCodec implements IMcnpCodec {
+	public static final byte ID = 1;
+	
+	private final ThreadLocal<Deflater> deflater;
+	private final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+	
+	public DeflateCodec() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * @param level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public DeflateCodec(final int level) {
+		this.deflater = new ThreadLocal<Deflater>() {
+			@Override
+			protected Deflater initialValue() {
+				return new Deflater(level, true);
+			}
+		};
+	}
+	
+	@Override
+	public byte getId() {
+		return ID;
+	}
+	
+	@Override
+	public int encode(ByteArray data, ByteArray target) {
+		Deflater deflater = this.deflater.get();
+		deflater.reset();
+		ByteBuffer input = toHeap(data);
+		deflater.setInput(input.array(), input.arrayOffset()+input.position(), input.remaining());
+		deflater.finish();
+		ByteBuffer output = target.isOffHeap() ? ByteBuffer.allocate(target.getLength()) : target.createByteBuffer();
+		int written = 0;
+		while(!deflater.finished()) {
+			if(written == output.remaining()) {
+				return -1;
+			}
+			written += deflater.deflate(output.array(), output.arrayOffset()+output.position()+written, output.remaining()-written);
+		}
+		if(target.isOffHeap()) {
+			output.limit(written);
+			target.copyFrom(new ByteArray(output));
+		}
+		return written;
+	}
+	
+	@Override
+	public void decode(ByteArray data, ByteArray target) throws IOException {
+		Inflater inflater = this.inflater.get();
+		inflater.reset();
+		ByteBuffer input = toHeap(data);
+		inflater.setInput(input.array(), input.arrayOffset()+input.position(), input.remaining());
+		ByteBuffer output = target.isOffHeap() ? ByteBuffer.allocate(target.getLength()) : target.createByteBuffer();
+		int read = 0;
+		try {
+			while(!inflater.finished()) {
+				int inflated = inflater.inflate(output.array(), output.arrayOffset()+output.position()+read, output.remaining()-read);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || read == output.remaining())) {
+					throw new IOException("Deflated data does not decode to "+target.getLength()+" bytes");
+				}
+				read += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+		if(read != output.remaining() || inflater.getRemaining() > 0) {
+			throw new IOException("Deflated data does not decode to "+target.getLength()+" bytes");
+		}
+		if(target.isOffHeap()) {
+			target.copyFrom(new ByteArray(output));
+		}
+	}
+	
+	private static ByteBuffer toHeap(ByteArray data) {
+		ByteBuffer buffer = data.createByteBuffer();
+		if(buffer.hasArray()) {
+			return buffer;
+		}
+		return data.copy().createByteBuffer();
+	}
+}
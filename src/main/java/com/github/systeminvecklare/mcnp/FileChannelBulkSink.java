@@ -0,0 +1,80 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a bulk transfer to a file, at the same positions as in the transfer, starting at <code>basePosition</code> of the file.
+ * <p>
+ * Memory mapped, the file is mapped {@value #MAP_REGION_SIZE} bytes at a time and parts are copied straight into the mapping.
+ * Otherwise every part is written with a positional write. The channel is not closed.
+ */
+public class FileChannelBulkSink implements IMcnpBulkSink {
+	private static final int MAP_REGION_SIZE = 64*1024*1024;
+
+	private final FileChannel channel;
+	private final long basePosition;
+	private final long end;
+	private final boolean memoryMapped;
+	private MappedByteBuffer region = null;
+	private long regionStart = -1;
+
+	/**
+	 * @param length of the transfer, as given to {@link IMcnpBulkListener#onTransferStarted(java.util.UUID, long)}
+	 */
+	public FileChannelBulkSink(FileChannel channel, long length, boolean memoryMapped) {
+		this(channel, 0, length, memoryMapped);
+	}
+
+	public FileChannelBulkSink(FileChannel channel, long basePosition, long length, boolean memoryMapped) {
+		this.channel = channel;
+		this.basePosition = basePosition;
+		this.end = basePosition+length;
+		this.memoryMapped = memoryMapped;
+	}
+
+	@Override
+	public void write(long position, ByteArray data) throws IOException {
+		ByteBuffer source = data.createByteBuffer();
+		long filePosition = basePosition+position;
+		if(memoryMapped) {
+			while(source.hasRemaining()) {
+				ByteBuffer target = mapRegionOf(filePosition);
+				target.position((int) (filePosition-regionStart));
+				int length = Math.min(source.remaining(), target.remaining());
+				ByteBuffer chunk = source.duplicate();
+				chunk.limit(chunk.position()+length);
+				target.put(chunk);
+				source.position(source.position()+length);
+				filePosition += length;
+			}
+		} else {
+			while(source.hasRemaining()) {
+				filePosition += channel.write(source, filePosition);
+			}
+		}
+	}
+
+	private MappedByteBuffer mapRegionOf(long filePosition) throws IOException {
+		long start = filePosition-filePosition%MAP_REGION_SIZE;
+		if(region == null || regionStart != start) {
+			if(region != null) {
+				region.force();
+			}
+			//Not past the end of the transfer, since mapping grows the file
+			region = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(MAP_REGION_SIZE, end-start));
+			regionStart = start;
+		}
+		return region;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(region != null) {
+			region.force();
+		}
+		channel.force(false);
+	}
+}
@@ -0,0 +1,169 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer that runs many short timeouts on one thread.
+ * <p>
+ * Time is split into ticks of {@value #TICK_DURATION} ms and timeouts are put in the bucket of the tick they expire on,
+ * in a wheel of {@value #WHEEL_SIZE} buckets. Timeouts further away than one turn of the wheel stay in their bucket for more rounds.
+ * Scheduling and cancelling are O(1), and each tick only looks at one bucket.
+ * <p>
+ * The thread is started with the first timeout and waits without ticking while no timeouts are pending.
+ * Tasks run on the timer thread, so they must not block.
+ */
+/*package-protected*/ class HashedWheelTimer implements IReleasable {
+	private static final long TICK_DURATION = 1;
+	private static final int WHEEL_SIZE = 512;
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_DURATION);
+
+	private final String threadName;
+	private final long startTime = System.nanoTime();
+	private final Timeout[] wheel = new Timeout[WHEEL_SIZE]; //Buckets as linked lists. Only touched by the timer thread.
+	private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private Thread thread = null; //Guarded by this
+	private volatile boolean released = false;
+
+	public HashedWheelTimer(String threadName) {
+		this.threadName = threadName;
+	}
+
+	/**
+	 * Runs <code>task</code> on the timer thread after at least <code>delay</code> ms.
+	 * Tasks scheduled after the timer has been released never run.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Timeout timeout = new Timeout(task, currentTick()+Math.max(1, (delay+TICK_DURATION-1)/TICK_DURATION));
+		newTimeouts.add(timeout);
+		if(pending.getAndIncrement() == 0) {
+			synchronized (this) {
+				if(thread == null && !released) {
+					thread = new Thread(new Worker(), threadName);
+					thread.setDaemon(true);
+					thread.start();
+				}
+				notifyAll();
+			}
+		}
+		return timeout;
+	}
+
+	private long currentTick() {
+		return (System.nanoTime()-startTime)/TICK_NANOS;
+	}
+
+	@Override
+	public void release() {
+		synchronized (this) {
+			released = true;
+			notifyAll();
+		}
+	}
+
+	private class Worker implements Runnable {
+		private long processedTick = currentTick();
+
+		@Override
+		public void run() {
+			while(!released) {
+				if(!awaitPending()) {
+					return;
+				}
+				long nextTickTime = startTime+(processedTick+1)*TICK_NANOS;
+				long sleepNanos = nextTickTime-System.nanoTime();
+				if(sleepNanos > 0) {
+					LockSupport.parkNanos(sleepNanos);
+					continue;
+				}
+				long tick = currentTick();
+				while(processedTick < tick && !released) {
+					processedTick++;
+					transferNewTimeouts();
+					expire((int) (processedTick & (WHEEL_SIZE-1)));
+				}
+			}
+		}
+
+		/**
+		 * @return false if the timer was released while waiting
+		 */
+		private boolean awaitPending() {
+			if(pending.get() > 0) {
+				return true;
+			}
+			synchronized (HashedWheelTimer.this) {
+				while(pending.get() == 0 && !released) {
+					try {
+						HashedWheelTimer.this.wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
+			}
+			//The wheel is empty, so the ticks slept through need not be processed
+			processedTick = Math.max(processedTick, currentTick()-1);
+			return !released;
+		}
+
+		private void transferNewTimeouts() {
+			Timeout timeout;
+			while((timeout = newTimeouts.poll()) != null) {
+				long deadlineTick = Math.max(timeout.deadlineTick, processedTick);
+				timeout.remainingRounds = (deadlineTick-processedTick)/WHEEL_SIZE;
+				int bucket = (int) (deadlineTick & (WHEEL_SIZE-1));
+				timeout.next = wheel[bucket];
+				wheel[bucket] = timeout;
+			}
+		}
+
+		private void expire(int bucketIndex) {
+			Timeout kept = null;
+			Timeout timeout = wheel[bucketIndex];
+			wheel[bucketIndex] = null;
+			while(timeout != null) {
+				Timeout next = timeout.next;
+				if(timeout.cancelled) {
+					pending.decrementAndGet();
+				} else if(timeout.remainingRounds <= 0) {
+					pending.decrementAndGet();
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				} else {
+					timeout.remainingRounds--;
+					timeout.next = kept;
+					kept = timeout;
+				}
+				timeout = next;
+			}
+			wheel[bucketIndex] = kept;
+		}
+	}
+
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadlineTick;
+		private long remainingRounds; //Only touched by the timer thread
+		private Timeout next; //Only touched by the timer thread
+		private volatile boolean cancelled = false;
+
+		private Timeout(Runnable task, long deadlineTick) {
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * Keeps the task from running, if it has not already started.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+}
@@ -1,6 +1,12 @@
 package com.github.systeminvecklare.mcnp;
 
+import java.util.UUID;
+
 /*package-protected*/ interface IAccableProtocolMessage {
 	boolean isAcced();
-	long getChecksum(IAllocator allocator);
+	UUID getUuid();
+	/**
+	 * @return index of the part to acc, or 0 if the message is not multipart
+	 */
+	int getAccPartIndex();
 }
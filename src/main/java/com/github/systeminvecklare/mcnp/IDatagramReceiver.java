@@ -0,0 +1,12 @@
+package com.github.systeminvecklare.mcnp;
+
+//DatagramReceiver manages a thread and keeps receiving packets as long there are subscribers.
+//If we get from a new address and noone is accepting new ones, ignore.
+//Callbacks to subscribers must not block as the are on the receiver thread.
+/*package-protected*/ interface IDatagramReceiver {
+	void subscribeAccept(IDatagramSubscriber subscriber);//Receives the first unknown, and removes new-subscriber, and adds subsriber for that address 
+	void unsubscribeAccept(IDatagramSubscriber subscriber);
+	void subscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber); //throw exception if multiple.
+	void replaceSubscriber(McnpAddress fromAddress, IDatagramSubscriber oldSubscriber, IDatagramSubscriber newSubscriber);
+	void unsubscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber);
+}
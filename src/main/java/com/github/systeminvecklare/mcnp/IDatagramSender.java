@@ -0,0 +1,22 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/*package-protected*/ interface IDatagramSender {
+	/**
+	 * Sends the packet to the address and port stamped on it.
+	 */
+	void send(DatagramPacket packet) throws IOException;
+	
+	/**
+	 * Sends the remaining bytes of the buffer. Direct buffers go to the network without being copied, when sending through a channel.
+	 */
+	void send(ByteBuffer datagram, McnpAddress receiver) throws IOException;
+	
+	/**
+	 * Sends every datagram of the batch, in order, to its address.
+	 */
+	void send(DatagramBatch batch) throws IOException;
+}
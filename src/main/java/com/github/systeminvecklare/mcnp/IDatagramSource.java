@@ -0,0 +1,17 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+
+/*package-protected*/ interface IDatagramSource {
+	/**
+	 * Blocks until at least one datagram has arrived, then adds it and as many more as are already waiting and fit to the batch.
+	 * May return with nothing added if woken up by {@link #wakeup()}.
+	 */
+	void receive(DatagramBatch batch) throws IOException;
+
+	/**
+	 * Makes a blocked {@link #receive(DatagramBatch)} return as soon as it can.
+	 * Sources that can only be woken up by closing them do nothing.
+	 */
+	void wakeup();
+}
@@ -3,20 +3,25 @@ package com.github.systeminvecklare.mcnp;
 import java.net.DatagramPacket;
 
 /*package-protected*/ interface IDatagramSubscriber {
-	void onDatagramPacket(McnpAddress sender, DatagramPacket packet);
+	/**
+	 * @param packetMemory the memory behind <code>packet</code> if it may be retained after the call, otherwise <code>null</code>.
+	 */
+	void onDatagramPacket(McnpAddress sender, DatagramPacket packet, ReferenceCountedByteArray packetMemory);
 	
 	public final class OnDatagramPacketEvent implements IEvent<IDatagramSubscriber> {
 		private final McnpAddress sender;
 		private final DatagramPacket packet;
+		private final ReferenceCountedByteArray packetMemory;
 		
-		public OnDatagramPacketEvent(McnpAddress sender, DatagramPacket packet) {
+		public OnDatagramPacketEvent(McnpAddress sender, DatagramPacket packet, ReferenceCountedByteArray packetMemory) {
 			this.sender = sender;
 			this.packet = packet;
+			this.packetMemory = packetMemory;
 		}
 
 		@Override
 		public void fireFor(IDatagramSubscriber listener) {
-			listener.onDatagramPacket(sender, packet);
+			listener.onDatagramPacket(sender, packet, packetMemory);
 		}
 	}
 }
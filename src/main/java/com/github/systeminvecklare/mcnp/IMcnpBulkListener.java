@@ -0,0 +1,28 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.UUID;
+
+/**
+ * Receives bulk transfers. See {@link McnpSocket#setBulkListener(IMcnpBulkListener)}.
+ */
+public interface IMcnpBulkListener {
+	/**
+	 * Called when the first part of a transfer arrives.
+	 * 
+	 * @param length of the whole transfer in bytes
+	 * @return the sink to write the transfer to, or <code>null</code> to ignore it, so that it is not acced
+	 */
+	IMcnpBulkSink onTransferStarted(UUID transferId, long length);
+	
+	/**
+	 * Every part has been written to the sink, and the sink has been flushed.
+	 */
+	void onTransferComplete(UUID transferId);
+	
+	/**
+	 * The transfer expired before all parts arrived, or writing to the sink failed. Nothing more is written for it.
+	 * 
+	 * @param cause the exception of the sink, or <code>null</code> if the transfer expired
+	 */
+	void onTransferAborted(UUID transferId, Exception cause);
+}
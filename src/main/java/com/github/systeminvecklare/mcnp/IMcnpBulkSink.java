@@ -0,0 +1,22 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+
+/**
+ * Where the data of a received bulk transfer is written. Parts arrive in any order, each is written once.
+ * 
+ * @see FileChannelBulkSink
+ */
+public interface IMcnpBulkSink {
+	/**
+	 * The data is only valid during the call.
+	 * 
+	 * @param position of the data in the transfer
+	 */
+	void write(long position, ByteArray data) throws IOException;
+	
+	/**
+	 * Called once every part has been written, before the transfer is reported as complete.
+	 */
+	void flush() throws IOException;
+}
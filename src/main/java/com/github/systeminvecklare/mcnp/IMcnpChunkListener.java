@@ -0,0 +1,24 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.UUID;
+
+/**
+ * Gets multipart messages piece by piece as they arrive, instead of as whole messages.
+ * See {@link McnpSocket#setChunkListener(IMcnpChunkListener)}.
+ */
+public interface IMcnpChunkListener {
+	/**
+	 * The next chunk of a message. Chunks of a message come in order, but chunks of different messages may be interleaved.
+	 * The data is only valid during the call.
+	 *
+	 * @param messageId the same for all chunks of a message
+	 * @param offset of the chunk in the message
+	 * @param last if this is the last chunk of the message
+	 */
+	void onChunk(UUID messageId, long offset, ByteArray data, boolean last);
+
+	/**
+	 * The message expired before all of its chunks arrived. No more chunks come for it.
+	 */
+	void onAborted(UUID messageId);
+}
@@ -0,0 +1,29 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+
+/**
+ * Compresses payloads. See {@link McnpSocket#setCompression(IMcnpCodec, int)}.
+ * Encoding and decoding may be called from several threads at once.
+ * 
+ * @see DeflateCodec
+ */
+public interface IMcnpCodec {
+	/**
+	 * Sent with every encoded payload, so that payloads of another codec are not decoded. Codecs that 
+	 * can not decode each other's data must have different ids.
+	 */
+	byte getId();
+	
+	/**
+	 * @param target to write the encoded data to, at the start
+	 * @return how many bytes were written, or -1 if the encoded data does not fit in <code>target</code>
+	 */
+	int encode(ByteArray data, ByteArray target);
+	
+	/**
+	 * @param target to fill with the decoded data, exactly as long as the data was before it was encoded
+	 * @throws IOException if the data is not valid, or does not decode to exactly <code>target.getLength()</code> bytes
+	 */
+	void decode(ByteArray data, ByteArray target) throws IOException;
+}
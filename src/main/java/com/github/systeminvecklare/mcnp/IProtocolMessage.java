@@ -1,7 +1,17 @@
 package com.github.systeminvecklare.mcnp;
 
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 
-/*package-protected*/ interface IProtocolMessage extends IEvent<IProtocolMessageListener> {
+/*package-protected*/ interface IProtocolMessage extends IEvent<IProtocolMessageListener>, IReleasable {
+	/**
+	 * @return one of the <code>TYPE_</code> constants of {@link BaseProtocolMessage}
+	 */
+	byte getType();
 	void writeTo(DatagramPacket packet);
+	void writeTo(ByteBuffer buffer);
+	/**
+	 * @return the exact number of bytes written by {@link #writeTo(ByteBuffer)}
+	 */
+	int getSize();
 }
@@ -1,7 +1,20 @@
 package com.github.systeminvecklare.mcnp;
 
+import java.util.UUID;
+
+/**
+ * Listeners are registered for the types of messages they handle, see {@link ProtocolMessageRouter}.
+ */
 /*package-protected*/ interface IProtocolMessageEventSource {
-	void addListener(IProtocolMessageListener listener);
-	void removeListener(IProtocolMessageListener listener);
-	void replaceListener(IProtocolMessageListener oldListener, IProtocolMessageListener newListener);
+	/**
+	 * @param type one of the <code>TYPE_</code> constants of {@link BaseProtocolMessage}
+	 */
+	void addListener(byte type, IProtocolMessageListener listener);
+	void removeListener(byte type, IProtocolMessageListener listener);
+	void replaceListener(byte type, IProtocolMessageListener oldListener, IProtocolMessageListener newListener);
+	/**
+	 * Gives <code>listener</code> the accs and sacks for the acced message <code>uuid</code>.
+	 */
+	void addAccListener(UUID uuid, IProtocolMessageListener listener);
+	void removeAccListener(UUID uuid, IProtocolMessageListener listener);
 }
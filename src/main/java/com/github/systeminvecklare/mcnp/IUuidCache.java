@@ -0,0 +1,26 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.UUID;
+
+/**
+ * Remembers the UUIDs of received messages until they expire, so that each message is only delivered once.
+ * 
+ * @see UuidCache
+ * @see BloomUuidCache
+ */
+/*package-protected*/ interface IUuidCache extends IReleasable {
+	/**
+	 * Does nothing if the UUID has already expired.
+	 */
+	void addUuid(long expiryTime, UUID uuid);
+	
+	/**
+	 * @return if the UUID has been added and has not been pruned yet
+	 */
+	boolean hasUUID(UUID uuid);
+	
+	/**
+	 * Forgets UUIDs that have expired.
+	 */
+	void prune();
+}
@@ -1,69 +1,79 @@
 package com.github.systeminvecklare.mcnp;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Copy-on-write list of listeners. Changes publish a new array, so firing an event is a volatile read and a loop,
+ * without locking or allocating.
+ */
 /*package-protected*/ final class ListenerList<L> {
-	private final List<ListenerLink> listeners = new ArrayList<>();
+	private static final ListenerLink<?>[] NO_LISTENERS = new ListenerLink<?>[0];
 
-	public void addListener(L listener) {
-		synchronized (listeners) {
-			listeners.add(new ListenerLink(listener));
-		}
+	private volatile ListenerLink<?>[] listeners = NO_LISTENERS; //Never modified once published. Replaced when holding this.
+
+	public synchronized void addListener(L listener) {
+		listeners = added(listeners, listener);
 	}
-	
-	public void removeListener(L listener) {
-		synchronized (listeners) {
-			Iterator<ListenerLink> iterator = listeners.iterator();
-			while(iterator.hasNext()) {
-				ListenerList<L>.ListenerLink listenerLink = iterator.next();
-				if(listenerLink.listener.equals(listener)) {
-					listenerLink.removed = true;
-					iterator.remove();
-				}
-			}
-		}
+
+	public synchronized void removeListener(L listener) {
+		listeners = removed(listeners, listener);
 	}
 
-	public void clear() {
-		synchronized (listeners) {
-			for(ListenerList<L>.ListenerLink link : listeners) {
-				link.removed = true;
-			}
-			listeners.clear();
+	public synchronized void clear() {
+		for(ListenerLink<?> link : listeners) {
+			link.removed = true;
 		}
+		listeners = NO_LISTENERS;
 	}
-	
+
 	public boolean isEmpty() {
-		synchronized (listeners) {
-			return listeners.isEmpty();
-		}
+		return listeners.length == 0;
+	}
+
+	/**
+	 * Published at once, so that an event is never fired for both the old and the new listener. An event that is being
+	 * fired meanwhile may reach neither, since the old listener is skipped as soon as it is removed.
+	 */
+	public synchronized void replaceListener(L oldListener, L newListener) {
+		listeners = added(removed(listeners, oldListener), newListener);
+	}
+
+	private static <L> ListenerLink<?>[] added(ListenerLink<?>[] links, L listener) {
+		ListenerLink<?>[] added = Arrays.copyOf(links, links.length+1);
+		added[links.length] = new ListenerLink<L>(listener);
+		return added;
 	}
 
-	public void replaceListener(L oldListener, L newListener) {
-		synchronized (listeners) {
-			removeListener(oldListener);
-			addListener(newListener);
+	private static <L> ListenerLink<?>[] removed(ListenerLink<?>[] links, L listener) {
+		ListenerLink<?>[] kept = new ListenerLink<?>[links.length];
+		int keptCount = 0;
+		for(ListenerLink<?> link : links) {
+			if(link.listener.equals(listener)) {
+				link.removed = true;
+			} else {
+				kept[keptCount++] = link;
+			}
 		}
+		if(keptCount == links.length) {
+			return links;
+		}
+		return keptCount == 0 ? NO_LISTENERS : Arrays.copyOf(kept, keptCount);
 	}
-	
+
+	@SuppressWarnings("unchecked")
 	public void forEach(IEvent<L> event) {
-		List<ListenerLink> listenersSnapshot;
-		synchronized (listeners) {
-			listenersSnapshot = new ArrayList<>(listeners);
-		}
-		for(ListenerLink link : listenersSnapshot) {
+		for(ListenerLink<?> link : listeners) {
+			//Listeners removed while the event is fired are skipped
 			if(!link.removed) {
-				event.fireFor(link.listener);
+				event.fireFor(((ListenerLink<L>) link).listener);
 			}
 		}
 	}
-	
-	private class ListenerLink {
+
+	private static class ListenerLink<L> {
 		private volatile boolean removed = false;
 		private final L listener;
-		
+
 		public ListenerLink(L listener) {
 			this.listener = listener;
 		}
@@ -2,12 +2,14 @@ package com.github.systeminvecklare.mcnp;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Objects;
 
 public final class McnpAddress {
 	/*package-protected*/ final InetAddress address;
 	/*package-protected*/ final int port;
+	private InetSocketAddress socketAddress = null; //Created when first needed. Safe to race on since it is immutable.
 	
 	public McnpAddress(InetAddress address, int port) {
 		this.address = address;
@@ -38,6 +40,15 @@ public final class McnpAddress {
 		packet.setPort(port);
 	}
 	
+	/*package-protected*/ InetSocketAddress toSocketAddress() {
+		InetSocketAddress result = socketAddress;
+		if(result == null) {
+			result = new InetSocketAddress(address, port);
+			socketAddress = result;
+		}
+		return result;
+	}
+	
 	public InetAddress getAddress() {
 		return address;
 	}
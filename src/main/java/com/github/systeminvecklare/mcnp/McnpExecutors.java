@@ -0,0 +1,62 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for {@link McnpSocket#setDispatchExecutor(Executor)}.
+ */
+public final class McnpExecutors {
+	private static ExecutorService sharedPool = null;
+	private static ExecutorService virtualThreadPerTask = null;
+	
+	private McnpExecutors() {
+	}
+	
+	/**
+	 * A fixed pool with one daemon thread per available processor, shared by all sockets that use it.
+	 */
+	public static synchronized Executor sharedPool() {
+		if(sharedPool == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			final AtomicInteger threadIndex = new AtomicInteger(0);
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "mcnp-dispatch-"+threadIndex.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			pool.allowCoreThreadTimeOut(true);
+			sharedPool = pool;
+		}
+		return sharedPool;
+	}
+	
+	/**
+	 * Starts a virtual thread for every dispatch. Since a socket only dispatches on one thread at a time, 
+	 * this amounts to at most one virtual thread per socket.
+	 * 
+	 * @throws UnsupportedOperationException if the runtime does not have virtual threads (Java 21 and later)
+	 */
+	public static synchronized Executor virtualThreadPerTask() {
+		if(virtualThreadPerTask == null) {
+			try {
+				virtualThreadPerTask = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (NoSuchMethodException e) {
+				throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				throw new UnsupportedOperationException("Could not create virtual thread executor", e);
+			}
+		}
+		return virtualThreadPerTask;
+	}
+}
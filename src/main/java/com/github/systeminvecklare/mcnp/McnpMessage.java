@@ -6,16 +6,43 @@ package com.github.systeminvecklare.mcnp;
 // the library has also joined any multipart messages to one message 
 public final class McnpMessage {
 	private final ByteArray data;
+	private final ReferenceCountedByteArray memory;
 	
 	public McnpMessage(byte[] data) {
 		this(new ByteArray(data));
 	}
 	
 	public McnpMessage(ByteArray data) {
+		this(data, null);
+	}
+	
+	/*package-protected*/ McnpMessage(ByteArray data, ReferenceCountedByteArray memory) {
 		this.data = data;
+		this.memory = memory;
 	}
 	
 	public ByteArray getData() {
 		return data;
 	}
+	
+	/**
+	 * Received messages on a socket with {@link McnpSocket#setZeroCopyReceive(boolean)} are views of pooled receive buffers
+	 * that are reused once the listener returns. A listener that wants to keep the data longer retains the message, 
+	 * and must release it when done. For other messages this does nothing.
+	 */
+	public McnpMessage retain() {
+		if(memory != null) {
+			memory.retain();
+		}
+		return this;
+	}
+	
+	/**
+	 * Releases a {@link #retain()}.
+	 */
+	public void release() {
+		if(memory != null) {
+			memory.release();
+		}
+	}
 }
@@ -1,46 +1,90 @@
 package com.github.systeminvecklare.mcnp;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.systeminvecklare.mcnp.time.IClock;
 
-public final class McnpServerSocket {
+public final class McnpServerSocket implements Closeable {
 	private final ResourceHolder mainResourceHolder = new ResourceHolder();
 	private final IClock localClock;
-	private final DatagramSocket datagramSocket;
-	private final IDatagramReceiver datagramReceiver;
-	private final IAllocator allocator;
-	private final ProtocolMessageSender messageSender;
+	private final Shard[] shards;
+	private final Map<McnpAddress, McnpSocket> acceptedSockets = new ConcurrentHashMap<McnpAddress, McnpSocket>();
+	private final AtomicLong sendDrops = new AtomicLong(0);
 
 	public McnpServerSocket(IClock localClock, int port) throws IOException {
-		this.localClock = localClock;
-		this.datagramSocket = new DatagramSocket(port);
-		mainResourceHolder.addReleasable(ResourceHolder.createReleasable(datagramSocket));
-		this.allocator = mainResourceHolder.addReleasable(new Allocator(UdpUtil.MAX_UDP_PAYLOAD*4));
-		this.messageSender = new ProtocolMessageSender(allocator);
-		this.datagramReceiver = new DatagramReceiver(datagramSocket, allocator);
+		this(localClock, port, ReceiveEngine.BLOCKING);
+	}
+	
+	public McnpServerSocket(IClock localClock, int port, ReceiveEngine receiveEngine) throws IOException {
+		this(localClock, port, receiveEngine, 1);
 	}
 	
+	/**
+	 * Creates a server socket that binds <code>shardCount</code> sockets to the same port using SO_REUSEPORT.
+	 * The kernel spreads clients over the sockets, and each socket has its own receiver and sender.
+	 */
+	public McnpServerSocket(IClock localClock, int port, ReceiveEngine receiveEngine, int shardCount) throws IOException {
+		if(shardCount < 1) {
+			throw new IllegalArgumentException("Need at least one shard");
+		}
+		this.localClock = localClock;
+		this.shards = new Shard[shardCount];
+		try {
+			for(int i = 0; i < shardCount; ++i) {
+				shards[i] = new Shard(receiveEngine, port, shardCount > 1);
+				port = shards[i].localPort; //If port was 0, the rest of the shards must join the port picked for the first one
+			}
+		} catch (IOException | RuntimeException e) {
+			mainResourceHolder.release();
+			throw e;
+		}
+	}
 	
 	public McnpSocket accept(IMcnpMessageListener mcnpMessageListener) throws InterruptedException {
-		final McnpSocket socket = new McnpSocket();
-		datagramReceiver.subscribeAccept(new IDatagramSubscriber() {
-			@Override
-			public void onDatagramPacket(McnpAddress sender, DatagramPacket packet) {
-				synchronized (datagramReceiver) {
-					TimesyncDatagramSubscriber timesyncDatagramSubscriber = new TimesyncDatagramSubscriber(socket, mcnpMessageListener);
-					datagramReceiver.replaceSubscriber(sender, this, timesyncDatagramSubscriber);
-					timesyncDatagramSubscriber.onDatagramPacket(sender, packet);
+		return accept(mcnpMessageListener, new McnpSocket());
+	}
+	
+	/**
+	 * Accepts the next client into the given socket. Lets the caller configure the socket 
+	 * (for example {@link McnpSocket#setDispatchExecutor(java.util.concurrent.Executor)}) before it is connected.
+	 */
+	public McnpSocket accept(IMcnpMessageListener mcnpMessageListener, final McnpSocket socket) throws InterruptedException {
+		final AcceptTicket acceptTicket = new AcceptTicket();
+		for(Shard shard : shards) {
+			IDatagramReceiver datagramReceiver = shard.datagramReceiver;
+			IDatagramSubscriber acceptor = new IDatagramSubscriber() {
+				@Override
+				public void onDatagramPacket(McnpAddress sender, DatagramPacket packet, ReferenceCountedByteArray packetMemory) {
+					synchronized (datagramReceiver) {
+						if(!acceptTicket.claim(this)) {
+							//An other shard got there first
+							datagramReceiver.unsubscribe(sender, this);
+							return;
+						}
+						TimesyncDatagramSubscriber timesyncDatagramSubscriber = new TimesyncDatagramSubscriber(shard, socket, mcnpMessageListener);
+						datagramReceiver.replaceSubscriber(sender, this, timesyncDatagramSubscriber);
+						timesyncDatagramSubscriber.onDatagramPacket(sender, packet, packetMemory);
+					}
 				}
-			}
-		});
+			};
+			acceptTicket.add(shard, acceptor);
+			datagramReceiver.subscribeAccept(acceptor);
+		}
+		acceptTicket.withdrawLosers(); //In case a shard claimed the client before all acceptors were subscribed
 		//TODO handle timeout
 		try {
 			synchronized (socket) {
@@ -53,17 +97,138 @@ public final class McnpServerSocket {
 		return socket;
 	}
 	
+	/**
+	 * Makes the blocking receive engine move every datagram into its own pooled buffer, 
+	 * so that accepted sockets with {@link McnpSocket#setZeroCopyReceive(boolean)} can hand out payloads without copying.
+	 * The selector engine always does this.
+	 */
+	public void setZeroCopyReceive(boolean zeroCopyReceive) {
+		for(Shard shard : shards) {
+			shard.setZeroCopyReceive(zeroCopyReceive);
+		}
+	}
+	
+	public int getPort() {
+		return shards[0].localPort;
+	}
+	
+	public int getShardCount() {
+		return shards.length;
+	}
+	
+	public int getConnectionCount() {
+		return acceptedSockets.size();
+	}
+	
+	/**
+	 * @return how many datagrams to clients have been dropped because the send buffer of a shard stayed full
+	 */
+	public long getSendDrops() {
+		return sendDrops.get();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		mainResourceHolder.release();
+	}
+	
+	private class Shard {
+		private final int localPort;
+		private final IDatagramSender datagramSender;
+		private final IDatagramReceiver datagramReceiver;
+		private final ProtocolMessageSender messageSender;
+		private DatagramReceiver blockingReceiver = null;
+		private IAllocator receivePool = null;
+		
+		public Shard(ReceiveEngine receiveEngine, int port, boolean reusePort) throws IOException {
+			this.messageSender = new ProtocolMessageSender(true);
+			DatagramChannel datagramChannel = DatagramChannel.open();
+			mainResourceHolder.addReleasable(ResourceHolder.createReleasable(datagramChannel), 1);
+			if(reusePort) {
+				if(!datagramChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					throw new IOException("SO_REUSEPORT is not supported on this platform");
+				}
+				datagramChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			datagramChannel.bind(new InetSocketAddress(port));
+			this.localPort = datagramChannel.socket().getLocalPort();
+			this.datagramSender = mainResourceHolder.addReleasable(new ChannelDatagramSender(datagramChannel, sendDrops));
+			if(receiveEngine == ReceiveEngine.SELECTOR) {
+				//TODO get size from settings
+				IAllocator receiveAllocator = mainResourceHolder.addReleasable(new SlabAllocator(UdpUtil.MAX_UDP_PAYLOAD*16));
+				this.datagramReceiver = mainResourceHolder.addReleasable(new ChannelDatagramReceiver(datagramChannel, receiveAllocator));
+			} else {
+				ChannelDatagramSource datagramSource = new ChannelDatagramSource(datagramChannel);
+				this.blockingReceiver = mainResourceHolder.addReleasable(new DatagramReceiver(datagramSource));
+				mainResourceHolder.addReleasable(datagramSource); //After the receiver has been stopped
+				this.datagramReceiver = blockingReceiver;
+			}
+		}
+		
+		public synchronized void setZeroCopyReceive(boolean zeroCopyReceive) {
+			if(blockingReceiver == null) {
+				return; //The channel receiver always hands out memory that can be retained
+			}
+			if(zeroCopyReceive && receivePool == null) {
+				//TODO get size from settings
+				receivePool = mainResourceHolder.addReleasable(new SlabAllocator(UdpUtil.MAX_UDP_PAYLOAD*4));
+			}
+			blockingReceiver.setReceivePool(zeroCopyReceive ? receivePool : null);
+		}
+	}
+	
+	/**
+	 * One accept() is offered to all shards. The first shard to get an unknown client claims it 
+	 * and the acceptors on the other shards are withdrawn.
+	 */
+	private static class AcceptTicket {
+		private final Map<Shard, IDatagramSubscriber> acceptors = new HashMap<Shard, IDatagramSubscriber>();
+		private IDatagramSubscriber winner = null;
+		
+		public synchronized void add(Shard shard, IDatagramSubscriber acceptor) {
+			acceptors.put(shard, acceptor);
+		}
+		
+		public boolean claim(IDatagramSubscriber acceptor) {
+			synchronized (this) {
+				if(winner != null) {
+					return winner == acceptor;
+				}
+				winner = acceptor;
+			}
+			withdrawLosers();
+			return true;
+		}
+		
+		public void withdrawLosers() {
+			Map<Shard, IDatagramSubscriber> losers;
+			synchronized (this) {
+				if(winner == null) {
+					return;
+				}
+				losers = new HashMap<Shard, IDatagramSubscriber>(acceptors);
+			}
+			for(Entry<Shard, IDatagramSubscriber> entry : losers.entrySet()) {
+				if(entry.getValue() != winner) {
+					entry.getKey().datagramReceiver.unsubscribeAccept(entry.getValue());
+				}
+			}
+		}
+	}
+	
 	private class TimesyncDatagramSubscriber implements IDatagramSubscriber {
+		private final Shard shard;
 		private final McnpSocket socket;
 		private final IMcnpMessageListener initialListener;
 
-		public TimesyncDatagramSubscriber(McnpSocket socket, IMcnpMessageListener initialListener) {
+		public TimesyncDatagramSubscriber(Shard shard, McnpSocket socket, IMcnpMessageListener initialListener) {
+			this.shard = shard;
 			this.socket = socket;
 			this.initialListener = initialListener;
 		}
 		
 		@Override
-		public void onDatagramPacket(McnpAddress sender, DatagramPacket packet) {
+		public void onDatagramPacket(McnpAddress sender, DatagramPacket packet, ReferenceCountedByteArray packetMemory) {
 			IProtocolMessage message = ProtocolMessageMarshaller.parseMessage(packet);
 			if(message instanceof TimeSyncRequest) {
 				UUID uuid = ((TimeSyncRequest) message).getUuid();
@@ -71,7 +236,7 @@ public final class McnpServerSocket {
 				TimeSyncResponse response = new TimeSyncResponse(uuid, localClock.getTime());
 				response.writeTo(packet);
 				try {
-					datagramSocket.send(packet);
+					shard.datagramSender.send(packet);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -83,20 +248,21 @@ public final class McnpServerSocket {
 				
 				ResourceHolder clientSocketResourceHolder = new ResourceHolder(mainResourceHolder);
 				
-				ClientSubscriber clientSubscriber = new ClientSubscriber(sender, datagramReceiver);
+				ClientSubscriber clientSubscriber = new ClientSubscriber(sender, shard.datagramReceiver);
 				clientSocketResourceHolder.addReleasable(clientSubscriber);
 				
-				TimeSyncResponserSubscriber timeSyncResponserSubscriber = new TimeSyncResponserSubscriber(acceptedProposal, sender);
-				clientSubscriber.addListener(timeSyncResponserSubscriber);
+				TimeSyncResponserSubscriber timeSyncResponserSubscriber = new TimeSyncResponserSubscriber(shard, acceptedProposal, sender);
+				clientSubscriber.addListener(BaseProtocolMessage.TYPE_TIMESYNC_PROPOSAL_REQUEST, timeSyncResponserSubscriber);
 				
-				datagramReceiver.replaceSubscriber(sender, TimesyncDatagramSubscriber.this, clientSubscriber);
+				shard.datagramReceiver.replaceSubscriber(sender, TimesyncDatagramSubscriber.this, clientSubscriber);
 				
-				socket.onConnected(sender, unifiedClock, acceptedProposal, clientSocketResourceHolder, clientSubscriber, messageSender.bind(datagramSocket, sender), initialListener);
+				acceptedSockets.put(sender, socket);
+				socket.onConnected(sender, unifiedClock, acceptedProposal, clientSocketResourceHolder, clientSubscriber, shard.messageSender.bind(shard.datagramSender, sender), initialListener);
 				
 				TimeSyncProposalResponse response = TimeSyncProposalResponse.accept(acceptedProposal);
 				response.writeTo(packet);
 				try {
-					datagramSocket.send(packet);
+					shard.datagramSender.send(packet);
 				} catch (IOException e) {
 					e.printStackTrace(); //TODO handle better
 				}
@@ -109,24 +275,21 @@ public final class McnpServerSocket {
 	}
 	
 	
-	//DatagramReceiver manages a thread and keeps receiving packets as long there are subscribers.
-	//If we get from a new address and noone is accepting new ones, ignore.
-	//Callbacks to subscribers must not block as the are on the receiver thread.
-	private interface IDatagramReceiver {
-		void subscribeAccept(IDatagramSubscriber subscriber);//Receives the first unknown, and removes new-subscriber, and adds subsriber for that address 
-		void subscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber); //throw exception if multiple.
-		void replaceSubscriber(McnpAddress fromAddress, IDatagramSubscriber oldSubscriber, IDatagramSubscriber newSubscriber);
-		void unsubscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber);
-	}
-	
-	private static class DatagramReceiver implements IDatagramReceiver {
+	private static class DatagramReceiver implements IDatagramReceiver, IReleasable {
+		private static final int RECEIVE_BUFFER_SIZE = UdpUtil.MAX_UDP_PAYLOAD*2; //Room for small datagrams after a max sized one
+		private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+		
 		private final Map<McnpAddress, IDatagramSubscriber> subscribers = new HashMap<McnpAddress, IDatagramSubscriber>();
 		private final Queue<IDatagramSubscriber> acceptors = new LinkedList<IDatagramSubscriber>();
 		
+		private final IDatagramSource datagramSource;
 		private final AutoLooper thread; 
-		private IAllocator.IBorrowedByteArray receiverPacketMemory = null;
+		private DatagramBatch receiveBatch = null;
+		private volatile IAllocator receivePool = null;
+		private volatile boolean released = false;
 		
-		public DatagramReceiver(DatagramSocket serverSocket, IAllocator allocator) {
+		public DatagramReceiver(IDatagramSource datagramSource) {
+			this.datagramSource = datagramSource;
 			AutoLooper.IRunCondition runCondition = new AutoLooper.IRunCondition() {
 				@Override
 				public boolean isMet() {
@@ -137,46 +300,70 @@ public final class McnpServerSocket {
 			};
 			
 			this.thread = new AutoLooper(new Runnable() {
+				private final DatagramPacket receiverPacket = new DatagramPacket(new byte[0], 0); //Reused when there is no receive pool
+				
 				@Override
 				public void run() {
-					ByteArray byteArray = receiverPacketMemory.getByteArray();
-					DatagramPacket receiverPacket = byteArray.createDatagramPacket();
+					DatagramBatch batch = receiveBatch;
+					batch.clear();
 					try {
-						receiverPacket.setLength(UdpUtil.MAX_UDP_PAYLOAD); //Reset length
-						serverSocket.receive(receiverPacket);
+						datagramSource.receive(batch);
 					} catch (IOException e) {
 						throw new RuntimeException(e);
 					}
+					//With a receive pool every packet is moved to its own memory, which subscribers may retain
+					IAllocator pool = receivePool;
 					synchronized (DatagramReceiver.this) {
-						McnpAddress sender = McnpAddress.from(receiverPacket);
-						IDatagramSubscriber subscriber = subscribers.get(sender);
-						if(subscriber == null) {
-							if(!acceptors.isEmpty()) {
-								subscriber = acceptors.poll();
-								subscribers.put(sender, subscriber);
+						for(int i = 0; i < batch.size(); ++i) {
+							McnpAddress sender = batch.getAddress(i);
+							DatagramPacket packet = receiverPacket;
+							ReferenceCountedByteArray packetMemory = null;
+							if(pool != null) {
+								packetMemory = new ReferenceCountedByteArray(pool.obtain(batch.getLength(i)));
+								new ByteArray(batch.array(), batch.getOffset(i), batch.getLength(i)).copyTo(packetMemory.getByteArray());
+								packet = packetMemory.getByteArray().createDatagramPacket();
+							} else {
+								packet.setData(batch.array(), batch.getOffset(i), batch.getLength(i));
+							}
+							sender.stamp(packet);
+							try {
+								deliver(sender, packet, packetMemory);
+							} finally {
+								if(packetMemory != null) {
+									packetMemory.release();
+								}
 							}
 						}
-						if(subscriber != null) {
-							subscriber.onDatagramPacket(sender, receiverPacket);
+					}
+				}
+				
+				private void deliver(McnpAddress sender, DatagramPacket receiverPacket, ReferenceCountedByteArray packetMemory) {
+					IDatagramSubscriber subscriber = subscribers.get(sender);
+					if(subscriber == null) {
+						if(!acceptors.isEmpty()) {
+							subscriber = acceptors.poll();
+							subscribers.put(sender, subscriber);
 						}
 					}
+					if(subscriber != null) {
+						subscriber.onDatagramPacket(sender, receiverPacket, packetMemory);
+					}
 				}
 			}, runCondition) {
 				@Override
 				protected void onBeforeStart() {
-					if(receiverPacketMemory == null) {
-						receiverPacketMemory = allocator.obtain(UdpUtil.MAX_UDP_PAYLOAD);
+					if(receiveBatch == null) {
+						receiveBatch = new DatagramBatch(RECEIVE_BUFFER_SIZE, MAX_DATAGRAMS_PER_WAKEUP, false);
 					}
 				}
 				
 				@Override
 				protected void onAfterStopped() {
-					receiverPacketMemory.release();
-					receiverPacketMemory = null;
+					receiveBatch = null;
 				}
 				@Override
 				protected boolean onRuntimeException(RuntimeException e) {
-					if(Thread.interrupted()) {
+					if(released || Thread.interrupted() || e instanceof ClosedSelectorException) {
 						return true;
 					}
 					if(e.getCause() instanceof IOException) {
@@ -188,12 +375,29 @@ public final class McnpServerSocket {
 			};
 		}
 		
+		public void setReceivePool(IAllocator receivePool) {
+			this.receivePool = receivePool;
+		}
+		
+		@Override
+		public void release() {
+			released = true;
+			thread.release();
+			datagramSource.wakeup();
+		}
+		
 		@Override
 		public synchronized void subscribeAccept(IDatagramSubscriber subscriber) {
 			acceptors.add(subscriber);
 			thread.checkCondition();
 		}
 
+		@Override
+		public synchronized void unsubscribeAccept(IDatagramSubscriber subscriber) {
+			acceptors.remove(subscriber);
+			thread.checkCondition();
+		}
+
 		@Override
 		public synchronized void subscribe(McnpAddress fromAddress, IDatagramSubscriber subscriber) {
 			if(subscribers.containsKey(fromAddress)) {
@@ -224,7 +428,7 @@ public final class McnpServerSocket {
 		private final McnpAddress clientAddress;
 		private final IDatagramReceiver datagramReceiver;
 		private volatile boolean released = false;
-		private final ListenerList<IProtocolMessageListener> listeners = new ListenerList<>();
+		private final ProtocolMessageRouter router = new ProtocolMessageRouter();
 		
 		public ClientSubscriber(McnpAddress clientAddress, IDatagramReceiver datagramReceiver) {
 			this.clientAddress = clientAddress;
@@ -232,14 +436,18 @@ public final class McnpServerSocket {
 		}
 
 		@Override
-		public void onDatagramPacket(McnpAddress sender, DatagramPacket packet) {
+		public void onDatagramPacket(McnpAddress sender, DatagramPacket packet, ReferenceCountedByteArray packetMemory) {
 //			//TODO 90% loss!
 //			if(Math.random() < 0.9f) { //TODO would be nice if we could simulate packet loss on both client and server side! Very nice for testing.
 //				return;
 //			}
-			if(!listeners.isEmpty()) {
-				IProtocolMessage protocolMessage = ProtocolMessageMarshaller.parseMessage(packet);
-				listeners.forEach(protocolMessage);
+			if(!router.isEmpty()) {
+				IProtocolMessage protocolMessage = ProtocolMessageMarshaller.parseMessage(packet, packetMemory);
+				try {
+					router.route(protocolMessage);
+				} finally {
+					protocolMessage.release(); //Listeners retain what they keep
+				}
 			}
 		}
 
@@ -247,37 +455,52 @@ public final class McnpServerSocket {
 		@Override
 		public void release() {
 			released = true;
-			listeners.clear();
+			router.clear();
 			datagramReceiver.unsubscribe(clientAddress, this);
+			acceptedSockets.remove(clientAddress);
 		}
 
 		@Override
-		public void addListener(IProtocolMessageListener listener) {
+		public void addListener(byte type, IProtocolMessageListener listener) {
 			if(!released) {
-				listeners.addListener(listener);
+				router.addListener(type, listener);
 			}
 		}
 
 		@Override
-		public void removeListener(IProtocolMessageListener listener) {
-			listeners.removeListener(listener);
+		public void removeListener(byte type, IProtocolMessageListener listener) {
+			router.removeListener(type, listener);
 		}
 
 		@Override
-		public void replaceListener(IProtocolMessageListener oldListener, IProtocolMessageListener newListener) {
+		public void replaceListener(byte type, IProtocolMessageListener oldListener, IProtocolMessageListener newListener) {
 			if(!released) {
-				listeners.replaceListener(oldListener, newListener);
+				router.replaceListener(type, oldListener, newListener);
 			} else {
-				listeners.removeListener(oldListener);
+				router.removeListener(type, oldListener);
+			}
+		}
+
+		@Override
+		public void addAccListener(UUID uuid, IProtocolMessageListener listener) {
+			if(!released) {
+				router.addAccListener(uuid, listener);
 			}
 		}
+
+		@Override
+		public void removeAccListener(UUID uuid, IProtocolMessageListener listener) {
+			router.removeAccListener(uuid, listener);
+		}
 	}
 	
 	private class TimeSyncResponserSubscriber implements IProtocolMessageListener {
+		private final Shard shard;
 		private final UUID acceptedProposal;
 		private final McnpAddress clientAddress;
 		
-		public TimeSyncResponserSubscriber(UUID acceptedProposal, McnpAddress clientAddress) {
+		public TimeSyncResponserSubscriber(Shard shard, UUID acceptedProposal, McnpAddress clientAddress) {
+			this.shard = shard;
 			this.acceptedProposal = acceptedProposal;
 			this.clientAddress = clientAddress;
 		}
@@ -288,9 +511,9 @@ public final class McnpServerSocket {
 				UUID uuid = ((TimeSyncProposalRequest) message).getUuid();
 				try {
 					if(acceptedProposal.equals(uuid)) {
-						messageSender.send(datagramSocket, clientAddress, TimeSyncProposalResponse.accept(uuid));
+						shard.messageSender.send(shard.datagramSender, clientAddress, TimeSyncProposalResponse.accept(uuid));
 					} else {
-						messageSender.send(datagramSocket, clientAddress, TimeSyncProposalResponse.decline(uuid, "Already accepted other: "+acceptedProposal));
+						shard.messageSender.send(shard.datagramSender, clientAddress, TimeSyncProposalResponse.decline(uuid, "Already accepted other: "+acceptedProposal));
 					}
 				} catch (IOException e) {
 					throw new RuntimeException(e);
@@ -298,4 +521,15 @@ public final class McnpServerSocket {
 			}
 		}
 	}
+	
+	public enum ReceiveEngine {
+		/**
+		 * One thread draining the channel and calling all subscribers.
+		 */
+		BLOCKING,
+		/**
+		 * Non-blocking channel drained by a selector thread, with per-client work queues processed on a worker pool.
+		 */
+		SELECTOR
+	}
 }
@@ -3,19 +3,31 @@ package com.github.systeminvecklare.mcnp;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
 
 import com.github.systeminvecklare.mcnp.ConnectedProtocolMessage.MultiPartParams;
 import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
@@ -59,14 +71,43 @@ public final class McnpSocket implements Closeable {
 	private int sendBufferSize = UdpUtil.MAX_UDP_PAYLOAD*2; //Size of allocator used for buffering.
 	private int mcnpMessageFreshTime = 3000; //Time until expiry for messages
 	private int accTimeoutTime = 5000; //Timeout when sending acced messages
-	private int accSendInitialInterval = 20; //Time before first resending of acced message
-	private int accSendInterval = 5; //Time between resending acced message (after first resend)
+	private int accSendInitialInterval = 20; //Retransmit timeout of acced messages until the round-trip time has been measured
+	private int accSendInterval = 5; //Lower bound of the retransmit timeout of acced messages
+	private int accSendMaxInterval = 1000; //Upper bound of the retransmit timeout of acced messages, also after backoff
 	private int burstInterval = 5; //Time between messages when bursting
+	private int zeroCopyReceivePoolSize = 4; //Size of the receive pool, in max sized datagrams, when receiving without copying
+	private volatile boolean zeroCopyReceive = false;
 	private ResourceHolder resourceHolder = null;
 	private ProtocolMessageSender.IBoundProtocolMessageSender messageSender = null;
-	private IAllocator accAllocator = null;
 	private IProtocolMessageEventSource protocolMessageEventSource = null;
+	private HashedWheelTimer timer = null; //Runs resends, burst copies, paced sends and coalescing delays
+	private long pacingRate = 0; //Bytes per second, 0 for no pacing. Guarded by this
+	private int pacingBurstSize = 0; //Guarded by this
+	private volatile Pacer pacer = null;
+	private final AtomicLong pacingDrops = new AtomicLong(0);
+	private final AtomicLong sendDrops = new AtomicLong(0);
+	private int coalescingDatagramSize = 0; //0 for no coalescing. Guarded by this
+	private long coalescingDelay = 0; //Guarded by this
+	private volatile Coalescer coalescer = null;
+	private volatile int fecRepairParts = 0;
+	private volatile Compression compression = null;
+	private final Coalescer.IDatagramOutput datagramOutput = new Coalescer.IDatagramOutput() {
+		@Override
+		public void send(IProtocolMessage datagram, long expiryTime) throws IOException {
+			Pacer pacerSnapshot = pacer;
+			if(pacerSnapshot != null) {
+				pacerSnapshot.send(datagram, expiryTime);
+			} else {
+				messageSender.send(datagram);
+			}
+		}
+	};
+	private final SendWindow sendWindow = new SendWindow();
+	private final RttEstimator rttEstimator = new RttEstimator(accSendInitialInterval, accSendInterval, accSendMaxInterval);
+	private final Set<AccedSend> accedSendsInFlight = ConcurrentHashMap.newKeySet();
 	private final IncommingMessageHandler incommingMessageHandler = new IncommingMessageHandler();
+	private static final int BULK_SEGMENT_PARTS = 256;
+	private static final int BULK_SEGMENTS_IN_FLIGHT = 2;
 	
 	public McnpSocket() {
 	}
@@ -82,16 +123,24 @@ public final class McnpSocket implements Closeable {
 		ResourceHolder resourceHolder = new ResourceHolder();
 		try {
 			long connectionStart = System.currentTimeMillis();
-			DatagramSocket datagramSocket = new DatagramSocket();
-			resourceHolder.addReleasable(ResourceHolder.createReleasable(datagramSocket), 1);
+			DatagramChannel datagramChannel = DatagramChannel.open();
+			resourceHolder.addReleasable(ResourceHolder.createReleasable(datagramChannel), 1);
+			datagramChannel.bind(null);
+			IDatagramSender datagramSender = resourceHolder.addReleasable(new ChannelDatagramSender(datagramChannel, socket.sendDrops));
 			
-			IAllocator sendBufferAllocator = new Allocator(socket.sendBufferSize);
-			ProtocolMessageSender.IBoundProtocolMessageSender messageSender = new ProtocolMessageSender(sendBufferAllocator).bind(datagramSocket, address);
+			IAllocator sendBufferAllocator = new SlabAllocator(socket.sendBufferSize);
+			ProtocolMessageSender.IBoundProtocolMessageSender messageSender = new ProtocolMessageSender(true).bind(datagramSender, address);
 			
 			UdpToProtocolMessageConverter messageConverter;
 			{
-				UdpReceiver udpReceiver = new UdpReceiver(datagramSocket, null);
+				IAllocator receivePool = null;
+				if(socket.zeroCopyReceive) {
+					receivePool = resourceHolder.addReleasable(new SlabAllocator(UdpUtil.MAX_UDP_PAYLOAD*socket.zeroCopyReceivePoolSize));
+				}
+				ChannelDatagramSource datagramSource = new ChannelDatagramSource(datagramChannel);
+				UdpReceiver udpReceiver = new UdpReceiver(datagramSource, receivePool);
 				resourceHolder.addReleasable(udpReceiver);
+				resourceHolder.addReleasable(datagramSource); //After the receiver has been stopped
 				messageConverter = new UdpToProtocolMessageConverter(udpReceiver);
 			}
 			Collection<TimeSyncMeasurement> measurements = new ArrayList<McnpSocket.TimeSyncMeasurement>();
@@ -102,7 +151,7 @@ public final class McnpSocket implements Closeable {
 			}
 			
 			TimeSyncCollector timeSyncCollector = new TimeSyncCollector(socket.localClock, measurements);
-			messageConverter.addListener(timeSyncCollector);
+			messageConverter.addListener(BaseProtocolMessage.TYPE_TIMESYNC_RESPONSE, timeSyncCollector);
 			try {
 				//TODO do a loop and retry. If we try to connect at the same time as a different client all initial messages might be missed!
 				for(TimeSyncMeasurement measurement : measurements) {
@@ -123,7 +172,7 @@ public final class McnpSocket implements Closeable {
 					}
 				}
 			} finally {
-				messageConverter.removeListener(timeSyncCollector);
+				messageConverter.removeListener(BaseProtocolMessage.TYPE_TIMESYNC_RESPONSE, timeSyncCollector);
 			}
 			
 			
@@ -133,6 +182,7 @@ public final class McnpSocket implements Closeable {
 			for(TimeSyncMeasurement measurement : measurements) {
 				if(measurement.isComplete()) {
 					long roundTrip = measurement.responseTimeInLocal-measurement.sendTimeInLocal;
+					socket.rttEstimator.onSample(roundTrip*1000);
 					long measuredMinRemoteTimeOffset = measurement.remoteTime-measurement.responseTimeInLocal;
 					long measuredMaxRemoteTimeOffset = measurement.remoteTime+roundTrip-measurement.responseTimeInLocal;
 					//We want to shrink the interval!
@@ -161,7 +211,7 @@ public final class McnpSocket implements Closeable {
 				
 				TimeSyncProposalResponseListener proposalResponseListener 
 				= new TimeSyncProposalResponseListener(proposalUUID);
-				messageConverter.addListener(proposalResponseListener);
+				messageConverter.addListener(BaseProtocolMessage.TYPE_TIMESYNC_PROPOSAL_RESPONSE, proposalResponseListener);
 				
 				byte responseStatus;
 				try {
@@ -173,7 +223,7 @@ public final class McnpSocket implements Closeable {
 					IBorrowedByteArray borrowedByteArray = sendBufferAllocator.obtain(TimeSyncProposalRequest.TIMESYNC_PROPOSAL_REQUEST_SIZE);
 					try {
 						DatagramPacket packet = borrowedByteArray.getByteArray().createDatagramPacket();
-						responseStatus = socket.sendProposal(timeSyncProposalRequest, proposalResponseListener, datagramSocket, address, packet, timeout);
+						responseStatus = socket.sendProposal(timeSyncProposalRequest, proposalResponseListener, datagramSender, address, packet, timeout);
 					} finally {
 						borrowedByteArray.release();
 					}
@@ -183,7 +233,7 @@ public final class McnpSocket implements Closeable {
 				}
 				if(responseStatus == TimeSyncProposalResponse.STATUS_PROPOSAL_ACCEPTED) {
 					//Got accepted!
-					messageConverter.removeListener(proposalResponseListener);
+					messageConverter.removeListener(BaseProtocolMessage.TYPE_TIMESYNC_PROPOSAL_RESPONSE, proposalResponseListener);
 					//TODO could use same allocator in whole socket. (if so, send here.)
 					socket.onConnected(
 							address, 
@@ -222,23 +272,47 @@ public final class McnpSocket implements Closeable {
 		this.resourceHolder = resourceHolder;
 		this.messageSender = messageSender;
 		this.protocolMessageEventSource = protocolMessageEventSource;
+		this.timer = resourceHolder.addReleasable(new HashedWheelTimer("mcnp-socket-timer"));
+		if(pacingRate > 0) {
+			this.pacer = new Pacer(messageSender, timer, unifiedClock, pacingRate, pacingBurstSize, pacingDrops);
+		}
+		if(coalescingDatagramSize > 0) {
+			this.coalescer = new Coalescer(datagramOutput, timer, coalescingDatagramSize, coalescingDelay);
+		}
+		resourceHolder.addReleasable(new IReleasable() {
+			@Override
+			public void release() {
+				//Before the datagram socket is closed
+				Coalescer coalescerSnapshot = coalescer;
+				if(coalescerSnapshot != null) {
+					coalescerSnapshot.release();
+				}
+			}
+		});
+		resourceHolder.addReleasable(new IReleasable() {
+			@Override
+			public void release() {
+				for(AccedSend accedSend : accedSendsInFlight) {
+					accedSend.result.complete(false);
+				}
+			}
+		});
 		
 		if(initialListener != null) {
 			//TODO Actually, since we want to be able to add listeners before socket is connected, we should skip sending the whole thingy here.
 			incommingMessageHandler.addListener(initialListener);
 		}
 		
-		this.accAllocator = resourceHolder.addReleasable(new Allocator(AccProtocolMessage.ACC_MESSAGE_SIZE*10));
 		resourceHolder.addReleasable(incommingMessageHandler);
-		incommingMessageHandler.onSocketConnected(protocolMessageEventSource, unifiedClock, messageSender, accAllocator);
+		incommingMessageHandler.onSocketConnected(protocolMessageEventSource, unifiedClock, messageSender, timer, rttEstimator);
 	}
 	
-	private byte sendProposal(TimeSyncProposalRequest timeSyncProposalRequest, TimeSyncProposalResponseListener proposalResponseListener, DatagramSocket datagramSocket, McnpAddress address, DatagramPacket packet, long sendProposalTimeout) throws IOException, InterruptedException, TimeoutException {
+	private byte sendProposal(TimeSyncProposalRequest timeSyncProposalRequest, TimeSyncProposalResponseListener proposalResponseListener, IDatagramSender datagramSender, McnpAddress address, DatagramPacket packet, long sendProposalTimeout) throws IOException, InterruptedException, TimeoutException {
 		long start = System.currentTimeMillis();
 		while(System.currentTimeMillis()-start < sendProposalTimeout) {
 			address.stamp(packet);
 			timeSyncProposalRequest.writeTo(packet);
-			datagramSocket.send(packet);
+			datagramSender.send(packet);
 			
 			Byte responseStatus = proposalResponseListener.getStatus();
 			if(responseStatus != null) {
@@ -262,6 +336,202 @@ public final class McnpSocket implements Closeable {
 	public void removeListener(IMcnpMessageListener listener) {
 		incommingMessageHandler.removeListener(listener);
 	}
+
+	/**
+	 * Streams multipart messages to <code>chunkListener</code>, part by part and in order, instead of assembling them
+	 * and handing them to the message listeners. Single part messages still go to the message listeners.
+	 * <p>
+	 * Nothing is assembled, so a socket that only streams never allocates the working memory for it.
+	 * Parts that arrive out of order are kept until the parts before them arrive, up to a limit, after which they are dropped.
+	 * Acced parts are only acced once handed over or kept, so the sender resends the dropped ones.
+	 * Repair parts from {@link #setForwardErrorCorrection(int)} are not used.
+	 * <p>
+	 * <code>null</code>, the default, turns streaming off.
+	 */
+	public void setChunkListener(IMcnpChunkListener chunkListener) {
+		incommingMessageHandler.setChunkListener(chunkListener);
+	}
+	
+	/**
+	 * Receives bulk transfers sent with {@link #sendBulk(FileChannel, long, long)} and {@link #sendBulk(ByteBuffer)} 
+	 * into the sinks the listener gives. Parts are written to the sink as they arrive, nothing of the transfer is kept in memory.
+	 * <p>
+	 * Parts are acced once written. A transfer the listener ignores, or whose sink fails, is not acced from then on, 
+	 * so that {@link #sendBulk(ByteBuffer) sendBulk} returns <code>false</code>.
+	 * <p>
+	 * <code>null</code>, the default, does not receive bulk transfers. They are then not acced, so the sender gives up.
+	 */
+	public void setBulkListener(IMcnpBulkListener bulkListener) {
+		incommingMessageHandler.setBulkListener(bulkListener);
+	}
+
+	/**
+	 * Lets received payloads stay in the pooled buffer the datagram was received into, instead of being copied into new arrays for every message.
+	 * Listeners then get views of pooled memory that is reused as soon as they return, unless they {@link McnpMessage#retain()} the message.
+	 * <p>
+	 * Must be set before {@link #connect(McnpAddress)}. For accepted sockets, the server socket must also receive into pooled buffers 
+	 * (see {@link McnpServerSocket#setZeroCopyReceive(boolean)}), otherwise payloads are handed out as plain arrays.
+	 */
+	public void setZeroCopyReceive(boolean zeroCopyReceive) {
+		this.zeroCopyReceive = zeroCopyReceive;
+		incommingMessageHandler.setZeroCopyReceive(zeroCopyReceive);
+	}
+	
+	/**
+	 * Remembers received messages that are not acced in a pair of Bloom filters instead of exactly, to drop copies of them. 
+	 * Memory for them is then fixed, sized for <code>messagesPerSecond</code>, instead of growing with the message rate.
+	 * In return, about <code>falseDropRate</code> of them are taken for copies of earlier ones and dropped. Acced messages
+	 * are still remembered exactly, so that none is acced without being delivered. Meant for high rate messages that may be lost, like telemetry.
+	 * <p>
+	 * Must be set before {@link #connect(McnpAddress)}. For accepted sockets, it must be set on the socket given to
+	 * {@link McnpServerSocket#accept(IMcnpMessageListener, McnpSocket)}.
+	 */
+	public void setProbabilisticDedup(int messagesPerSecond, double falseDropRate) {
+		//Senders send at most this long before expiry
+		long windowDuration = Math.max(mcnpMessageFreshTime, accTimeoutTime);
+		int expectedPerWindow = (int) Math.min(Integer.MAX_VALUE, messagesPerSecond*windowDuration/1000);
+		incommingMessageHandler.setProbabilisticDedup(windowDuration, expectedPerWindow, falseDropRate);
+	}
+	
+	/**
+	 * Sets how many received messages may wait to be delivered to listeners, and what to do with messages that arrive when that many are waiting.
+	 * Acced messages are acced once queued, so they are never dropped from the queue. The default is 100 messages and {@link OverflowPolicy#DROP_NEWEST}.
+	 * <p>
+	 * Must be set before {@link #connect(McnpAddress)}. For accepted sockets, it must be set on the socket given to
+	 * {@link McnpServerSocket#accept(IMcnpMessageListener, McnpSocket)}.
+	 */
+	public void setReceiveQueue(int maxLength, OverflowPolicy overflowPolicy) {
+		incommingMessageHandler.setReceiveQueue(maxLength, overflowPolicy);
+	}
+	
+	/**
+	 * @return how many received messages have been dropped because the receive queue was full, see {@link #setReceiveQueue(int, OverflowPolicy)}
+	 */
+	public long getDroppedMessages() {
+		return incommingMessageHandler.getDroppedMessages();
+	}
+	
+	/**
+	 * Sets the executor that delivers incoming messages to listeners. Messages for this socket are still delivered 
+	 * one at a time and in order, but the thread doing it is borrowed from the executor.
+	 * See {@link McnpExecutors} for a shared pool and virtual threads.
+	 * <p>
+	 * <code>null</code>, the default, gives the socket a dedicated dispatch thread.
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		incommingMessageHandler.setDispatchExecutor(dispatchExecutor);
+	}
+	
+	/**
+	 * Lets incoming messages be delivered to listeners in batches. Delivery is held back until <code>maxBatchSize</code> 
+	 * messages have arrived or <code>maxBatchLatency</code> ms has passed since the first of them arrived.
+	 * <p>
+	 * The default, a batch size of 1, delivers every message as soon as it arrives.
+	 * Only applies to the dedicated dispatch thread. With a dispatch executor, whatever has arrived is delivered in one go.
+	 */
+	public void setDispatchBatching(int maxBatchSize, long maxBatchLatency) {
+		if(maxBatchSize < 1 || maxBatchLatency < 0) {
+			throw new IllegalArgumentException("Batch size must be at least 1 and latency must not be negative");
+		}
+		incommingMessageHandler.setDispatchBatching(maxBatchSize, maxBatchLatency);
+	}
+	
+	/**
+	 * Spaces out datagrams of {@link #send(McnpMessage)} and {@link #sendBurst(McnpMessage, int)} to at most <code>bytesPerSecond</code>,
+	 * with at most <code>burstSize</code> bytes (but at least one max sized datagram) sent back to back.
+	 * Datagrams that have to wait are queued and sent from the timer of the socket, so sending never blocks.
+	 * <p>
+	 * A rate of 0, the default, sends every datagram right away. Acced messages are not paced, they are limited by the send window.
+	 */
+	public synchronized void setPacingRate(long bytesPerSecond, int burstSize) {
+		if(bytesPerSecond < 0) {
+			throw new IllegalArgumentException("Rate must not be negative");
+		}
+		this.pacingRate = bytesPerSecond;
+		this.pacingBurstSize = burstSize;
+		if(timer != null) {
+			pacer = bytesPerSecond > 0 ? new Pacer(messageSender, timer, unifiedClock, bytesPerSecond, burstSize, pacingDrops) : null;
+		}
+	}
+	
+	/**
+	 * @return how many datagrams have been dropped because too many were waiting to be paced, see {@link #setPacingRate(long, int)}
+	 */
+	public long getPacingDrops() {
+		return pacingDrops.get();
+	}
+	
+	/**
+	 * @return how many datagrams have been dropped because the send buffer of the socket stayed full.
+	 * Only counts for sockets that connected themselves, accepted sockets are counted by {@link McnpServerSocket#getSendDrops()}.
+	 */
+	public long getSendDrops() {
+		return sendDrops.get();
+	}
+	
+	/**
+	 * Packs short messages of {@link #send(McnpMessage)} and {@link #sendBurst(McnpMessage, int)} that are sent close together
+	 * into datagrams of at most <code>maxDatagramSize</code> bytes. A datagram is sent when the next message does not fit,
+	 * or <code>maxDelay</code> ms after its first message was sent. Each message still expires and is deduplicated on its own.
+	 * <p>
+	 * A size of 0, the default, sends every message in its own datagram. Acced and multipart messages are never coalesced.
+	 * The receiver must understand batched datagrams.
+	 */
+	public synchronized void setCoalescing(int maxDatagramSize, long maxDelay) throws IOException {
+		if(maxDatagramSize < 0 || maxDatagramSize > UdpUtil.MAX_UDP_PAYLOAD || maxDelay < 0) {
+			throw new IllegalArgumentException("Datagram size must be between 0 and "+UdpUtil.MAX_UDP_PAYLOAD+" and delay must not be negative");
+		}
+		this.coalescingDatagramSize = maxDatagramSize;
+		this.coalescingDelay = maxDelay;
+		if(timer != null) {
+			Coalescer oldCoalescer = coalescer;
+			coalescer = maxDatagramSize > 0 ? new Coalescer(datagramOutput, timer, maxDatagramSize, maxDelay) : null;
+			if(oldCoalescer != null) {
+				oldCoalescer.flush();
+			}
+		}
+	}
+	
+	/**
+	 * Adds <code>repairParts</code> repair parts to every multipart message sent with {@link #send(McnpMessage)} and 
+	 * {@link #sendBurst(McnpMessage, int)}. The receiver can then rebuild the message from any of its parts, 
+	 * as long as at most <code>repairParts</code> are lost, without waiting for another copy.
+	 * Messages of close to {@value ReedSolomon#MAX_SHARDS} parts get fewer repair parts.
+	 * <p>
+	 * 0, the default, sends no repair parts. Acced messages are resent instead. The receiver must understand error correction.
+	 */
+	public void setForwardErrorCorrection(int repairParts) {
+		if(repairParts < 0 || repairParts >= ReedSolomon.MAX_SHARDS) {
+			throw new IllegalArgumentException("Repair parts must be between 0 and "+(ReedSolomon.MAX_SHARDS-1));
+		}
+		this.fecRepairParts = repairParts;
+	}
+	
+	/**
+	 * Encodes payloads of at least <code>threshold</code> bytes with <code>codec</code> before sending them, 
+	 * when that makes them smaller, and decodes received payloads that were encoded. Fewer bytes means fewer parts, 
+	 * so large compressible messages are both faster and less likely to be lost.
+	 * <p>
+	 * Received payloads are decoded with the codec of the id they were sent with: {@link DeflateCodec}, or a codec that has
+	 * been set here. Payloads of unknown codecs are dropped and counted, see {@link #getDecodeFailures()}. Compressed multipart
+	 * messages are always assembled, also with a {@link #setChunkListener(IMcnpChunkListener) chunk listener}, 
+	 * and bulk transfers are never compressed. <code>null</code>, the default, sends payloads as they are.
+	 * 
+	 * @see DeflateCodec
+	 */
+	public void setCompression(IMcnpCodec codec, int threshold) {
+		if(codec != null) {
+			incommingMessageHandler.addCodec(codec);
+		}
+		this.compression = codec != null ? new Compression(codec, threshold) : null;
+	}
+	
+	/**
+	 * @return how many received messages have been dropped because they could not be decoded, see {@link #setCompression(IMcnpCodec, int)}
+	 */
+	public long getDecodeFailures() {
+		return incommingMessageHandler.getDecodeFailures();
+	}
 	
 	public McnpAddress getConnectedAddress() {
 		return connectedAddress;
@@ -271,6 +541,13 @@ public final class McnpSocket implements Closeable {
 		return unifiedClock;
 	}
 	
+	/**
+	 * Round-trip time as measured by time syncs when connecting and by accs. The retransmit timeout of acced messages is based on it.
+	 */
+	public RttStats getRttStats() {
+		return rttEstimator.getStats();
+	}
+	
 	@Override
 	public void close() throws IOException {
 		//TODO set some state-flags also
@@ -283,38 +560,115 @@ public final class McnpSocket implements Closeable {
 		sendBurst(message, 1);
 	}
 	
+	/**
+	 * Sends <code>copies</code> copies of the message, <code>burstInterval</code> ms apart. Only the first copy is sent 
+	 * before returning, the rest are sent from the timer of the socket.
+	 */
 	public void sendBurst(McnpMessage message, int copies) throws IOException {
 		//TODO check state (check connected)
 		
-		long expiryTime = unifiedClock.getTime()+mcnpMessageFreshTime+burstInterval*(copies-1);
+		final long expiryTime = unifiedClock.getTime()+mcnpMessageFreshTime+burstInterval*(copies-1);
 		
-		UUID uuid = UUID.randomUUID();
+		final long uuidMostSigBits = MessageIds.nextMostSigBits();
+		final long uuidLeastSigBits = MessageIds.nextLeastSigBits();
 		ByteArray data = message.getData();
-		for(int burstCopy = 0; burstCopy < copies; ++burstCopy) {
-			if(burstCopy != 0) {
-				try {
-					Thread.sleep(burstInterval);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					return;
+		ByteArray encoded = encode(data);
+		final byte flags = encoded != null ? ConnectedProtocolMessage.FLAG_COMPRESSED : 0;
+		if(encoded != null) {
+			data = encoded;
+		} else if(copies > 1 || pacer != null || coalescer != null) {
+			//Sent after returning, when the caller may have changed the message
+			data = data.copy();
+		}
+		//Parts are made once and sent by every copy
+		final List<ConnectedProtocolMessage> multipartMessages = data.getLength() > ConnectedProtocolMessage.MAX_SHORT_PAYLOAD_SIZE ? createUnaccedMultipart(expiryTime, new UUID(uuidMostSigBits, uuidLeastSigBits), flags, data) : null;
+		sendCopy(expiryTime, flags, uuidMostSigBits, uuidLeastSigBits, data, multipartMessages, false);
+		final ByteArray burstData = data;
+		for(int burstCopy = 1; burstCopy < copies; ++burstCopy) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendCopy(expiryTime, flags, uuidMostSigBits, uuidLeastSigBits, burstData, multipartMessages, true);
+					} catch (IOException e) {
+						e.printStackTrace();
+						//TODO handle better
+					}
 				}
-			}
-			if(data.getLength() > ConnectedProtocolMessage.MAX_SHORT_PAYLOAD_SIZE) {
-				for(ConnectedProtocolMessage multipartMessage : createMultipart(expiryTime, uuid, false, data, new ArrayList<>())) {
-					messageSender.send(multipartMessage);
+			}, burstInterval*burstCopy);
+		}
+	}
+	
+	/**
+	 * @param multipartMessages the parts if <code>data</code> is too long for a short message, otherwise <code>null</code>
+	 */
+	private void sendCopy(long expiryTime, byte flags, long uuidMostSigBits, long uuidLeastSigBits, ByteArray data, List<ConnectedProtocolMessage> multipartMessages, boolean burstCopy) throws IOException {
+		Pacer pacerSnapshot = pacer;
+		if(multipartMessages != null) {
+			if(pacerSnapshot != null) {
+				for(ConnectedProtocolMessage multipartMessage : multipartMessages) {
+					pacerSnapshot.send(multipartMessage);
 				}
 			} else {
-				byte flags = 0;
-				messageSender.send(new ConnectedProtocolMessage(expiryTime, flags, uuid, data));
+				messageSender.sendAll(multipartMessages);
+			}
+		} else {
+			Coalescer coalescerSnapshot = coalescer;
+			if(coalescerSnapshot != null) {
+				coalescerSnapshot.send(new ConnectedProtocolMessage(expiryTime, flags, new UUID(uuidMostSigBits, uuidLeastSigBits), data), burstCopy);
+			} else if(pacerSnapshot != null) {
+				pacerSnapshot.send(new ConnectedProtocolMessage(expiryTime, flags, new UUID(uuidMostSigBits, uuidLeastSigBits), data));
+			} else {
+				messageSender.sendConnected(expiryTime, flags, uuidMostSigBits, uuidLeastSigBits, data);
 			}
 		}
 	}
 	
-	private static List<ConnectedProtocolMessage> createMultipart(long expiryTime, UUID uuid, boolean acced, ByteArray data, List<ConnectedProtocolMessage> result) {
-		byte flags = ConnectedProtocolMessage.FLAG_MULTIPART;
-		if(acced) {
-			flags |= ConnectedProtocolMessage.FLAG_ACCED;
+	/**
+	 * @return the data encoded by the codec of the socket, or <code>null</code> if it should be sent as it is
+	 */
+	private ByteArray encode(ByteArray data) {
+		Compression compressionSnapshot = compression;
+		return compressionSnapshot != null ? compressionSnapshot.encode(data) : null;
+	}
+	
+	private List<ConnectedProtocolMessage> createUnaccedMultipart(long expiryTime, UUID uuid, byte flags, ByteArray data) {
+		int repairParts = fecRepairParts;
+		if(repairParts > 0) {
+			int dataParts = ReedSolomon.getDataShards(MultipartHandler.getShardSize(data.getLength()), data.getLength());
+			repairParts = Math.min(repairParts, ReedSolomon.MAX_SHARDS-dataParts);
+			if(repairParts > 0) {
+				return createFecMultipart(expiryTime, uuid, flags, data, repairParts);
+			}
+		}
+		return createMultipart(expiryTime, uuid, flags, data, new ArrayList<>());
+	}
+	
+	/**
+	 * Splits the message into data parts and adds <code>repairParts</code> repair parts after them.
+	 */
+	private static List<ConnectedProtocolMessage> createFecMultipart(long expiryTime, UUID uuid, byte flags, ByteArray data, int repairParts) {
+		flags |= ConnectedProtocolMessage.FLAG_MULTIPART | ConnectedProtocolMessage.FLAG_FEC;
+		int messageLength = data.getLength();
+		int shardSize = MultipartHandler.getShardSize(messageLength);
+		ReedSolomon errorCorrection = new ReedSolomon(repairParts, shardSize, messageLength);
+		int parts = errorCorrection.getDataShards();
+		ConnectedProtocolMessage.FecParams fecParams = new ConnectedProtocolMessage.FecParams(repairParts, messageLength);
+		List<ConnectedProtocolMessage> result = new ArrayList<ConnectedProtocolMessage>(parts+repairParts);
+		for(int partIndex = 0; partIndex < parts; ++partIndex) {
+			int offset = partIndex*shardSize;
+			ByteArray payload = data.subArray(offset, Math.min(shardSize, messageLength-offset));
+			result.add(new ConnectedProtocolMessage(expiryTime, flags, uuid, new MultiPartParams(partIndex, parts), fecParams, payload, null));
+		}
+		byte[][] repair = errorCorrection.encode(data);
+		for(int repairIndex = 0; repairIndex < repairParts; ++repairIndex) {
+			result.add(new ConnectedProtocolMessage(expiryTime, flags, uuid, new MultiPartParams(parts+repairIndex, parts), fecParams, new ByteArray(repair[repairIndex]), null));
 		}
+		return result;
+	}
+	
+	private static List<ConnectedProtocolMessage> createMultipart(long expiryTime, UUID uuid, byte flags, ByteArray data, List<ConnectedProtocolMessage> result) {
+		flags |= ConnectedProtocolMessage.FLAG_MULTIPART;
 		final int MAX_PART_SIZE = ConnectedProtocolMessage.MAX_MULTIPART_PART_PAYLOAD_SIZE;
 		int remaining = data.getLength();
 		int parts = remaining/MAX_PART_SIZE;
@@ -333,61 +687,377 @@ public final class McnpSocket implements Closeable {
 		return result;
 	}
 	
+	/**
+	 * Blocks until every part of the message has been acced, or the message has expired.
+	 * 
+	 * @return if the message was acced. <code>false</code> if it expired, the socket was closed or the thread was interrupted.
+	 */
 	public boolean sendAcced(McnpMessage message) throws IOException {
+		return awaitAcced(sendAccedAsync(message));
+	}
+	
+	private static boolean awaitAcced(CompletableFuture<Boolean> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			result.cancel(false);
+			return false;
+		} catch (CancellationException e) {
+			return false;
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Sends the message and returns without waiting for it to be acced. Resending is done by the retransmit timer of the socket,
+	 * so any number of acced messages can be in flight without a thread each.
+	 * <p>
+	 * The future completes with <code>true</code> when every part has been acced, and with <code>false</code> if the message
+	 * expired or the socket was closed. It completes exceptionally if resending fails. Cancelling it stops the resending.
+	 * Dependent actions that are not async run on the receive or timer thread of the socket, so they must not block.
+	 * 
+	 * @throws IOException if the first send fails
+	 */
+	public CompletableFuture<Boolean> sendAccedAsync(McnpMessage message) throws IOException {
 		//TODO check state (check connected)
 		
 		//TODO we should add a accBurstParameter so that initial send of acced messages are bursted
 		
 		long expiryTime = unifiedClock.getTime()+accTimeoutTime;
 		
-		UUID uuid = UUID.randomUUID();
+		UUID uuid = MessageIds.next();
 		ByteArray data = message.getData();
+		byte flags = ConnectedProtocolMessage.FLAG_ACCED;
+		ByteArray encoded = encode(data);
+		if(encoded != null) {
+			data = encoded;
+			flags |= ConnectedProtocolMessage.FLAG_COMPRESSED;
+		}
+		List<ConnectedProtocolMessage> messages;
 		if(data.getLength() > ConnectedProtocolMessage.MAX_SHORT_PAYLOAD_SIZE) {
-			List<ConnectedProtocolMessage> messages = createMultipart(expiryTime, uuid, true, data, new ArrayList<>());
-			return sendAccedInternal(expiryTime, messages);
+			messages = createMultipart(expiryTime, uuid, flags, data, new ArrayList<>());
 		} else {
-			
-			byte flags = ConnectedProtocolMessage.FLAG_ACCED;
 			ConnectedProtocolMessage protocolMessage = new ConnectedProtocolMessage(expiryTime, flags, uuid, data);
 			
-			return sendAccedInternal(expiryTime, Collections.singleton(protocolMessage));
+			messages = Collections.singletonList(protocolMessage);
 		}
+		AccedSend accedSend = new AccedSend(expiryTime, uuid, messages);
+		accedSend.start();
+		return accedSend.result;
 	}
 	
+	/**
+	 * Sends <code>length</code> bytes of the file from <code>position</code> as a bulk transfer, which the receiver writes to 
+	 * the sink given by its {@link #setBulkListener(IMcnpBulkListener) bulk listener}. The file is memory mapped a segment at a time,
+	 * so the transfer is never copied to the heap.
+	 * <p>
+	 * Blocks until every part has been acced. See {@link #sendBulk(ByteBuffer)}.
+	 * 
+	 * @return if the transfer was acced. <code>false</code> if a segment expired, the socket was closed or the thread was interrupted.
+	 */
+	public boolean sendBulk(final FileChannel source, final long position, long length) throws IOException {
+		return sendBulk(length, new IBulkSource() {
+			@Override
+			public ByteArray getSegment(long offset, int segmentLength) throws IOException {
+				return new ByteArray(source.map(FileChannel.MapMode.READ_ONLY, position+offset, segmentLength));
+			}
+		});
+	}
+	
+	/**
+	 * Sends the remaining bytes of the buffer as a bulk transfer, which the receiver writes to the sink given by 
+	 * its {@link #setBulkListener(IMcnpBulkListener) bulk listener}. The buffer must not change until this returns.
+	 * <p>
+	 * The transfer is sent as acced multipart segments of {@value #BULK_SEGMENT_PARTS} parts, with at most 
+	 * {@value #BULK_SEGMENTS_IN_FLIGHT} segments in flight. Each segment must be acced before it expires. 
+	 * Blocks until every part has been acced.
+	 * 
+	 * @return if the transfer was acced. <code>false</code> if a segment expired, the socket was closed or the thread was interrupted.
+	 */
+	public boolean sendBulk(final ByteBuffer source) throws IOException {
+		return sendBulk(source.remaining(), new IBulkSource() {
+			@Override
+			public ByteArray getSegment(long offset, int segmentLength) {
+				ByteBuffer segment = source.duplicate();
+				segment.position(source.position()+(int) offset);
+				segment.limit(segment.position()+segmentLength);
+				return new ByteArray(segment);
+			}
+		});
+	}
 	
-	private boolean sendAccedInternal(long expiryTime, Collection<ConnectedProtocolMessage> messages) throws IOException {
-		Map<ConnectedProtocolMessage, Long> checksums = new HashMap<>();
-		for(ConnectedProtocolMessage part : messages) {
-			checksums.put(part, part.getChecksum(accAllocator));
+	private boolean sendBulk(long length, IBulkSource source) throws IOException {
+		//TODO check state (check connected)
+		if(length <= 0) {
+			throw new IllegalArgumentException("Length must be positive");
 		}
-		AccListener accListener = new AccListener(checksums.values());
-		protocolMessageEventSource.addListener(accListener);
+		final long SEGMENT_SIZE = BULK_SEGMENT_PARTS*(long) ConnectedProtocolMessage.MAX_BULK_PART_PAYLOAD_SIZE;
+		UUID transferId = MessageIds.next();
+		Deque<CompletableFuture<Boolean>> segmentsInFlight = new ArrayDeque<CompletableFuture<Boolean>>();
 		try {
-			boolean firstWait = true;
-			while(unifiedClock.getTime() < expiryTime) {
-				boolean allDone = true;
-				for(Entry<ConnectedProtocolMessage, Long> entry : checksums.entrySet()) {
-					if(!accListener.isAcced(entry.getValue())) {
-						messageSender.send(entry.getKey());
-//						if(entry.getKey().isMultipart()) {
-//							System.out.println("Sending part "+entry.getKey().getPartIndex());
-//						}
-						allDone = false;
+			for(long offset = 0; offset < length; offset += SEGMENT_SIZE) {
+				if(segmentsInFlight.size() == BULK_SEGMENTS_IN_FLIGHT && !awaitAcced(segmentsInFlight.poll())) {
+					return false;
+				}
+				int segmentLength = (int) Math.min(SEGMENT_SIZE, length-offset);
+				ConnectedProtocolMessage.BulkParams bulkParams = new ConnectedProtocolMessage.BulkParams(transferId, offset, length);
+				segmentsInFlight.add(sendBulkSegment(bulkParams, source.getSegment(offset, segmentLength)));
+			}
+			while(!segmentsInFlight.isEmpty()) {
+				if(!awaitAcced(segmentsInFlight.poll())) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			for(CompletableFuture<Boolean> segment : segmentsInFlight) {
+				segment.cancel(false);
+			}
+		}
+	}
+	
+	private CompletableFuture<Boolean> sendBulkSegment(ConnectedProtocolMessage.BulkParams bulkParams, ByteArray segment) throws IOException {
+		long expiryTime = unifiedClock.getTime()+accTimeoutTime;
+		UUID uuid = MessageIds.next();
+		byte flags = ConnectedProtocolMessage.FLAG_MULTIPART | ConnectedProtocolMessage.FLAG_ACCED | ConnectedProtocolMessage.FLAG_BULK;
+		final int PART_SIZE = ConnectedProtocolMessage.MAX_BULK_PART_PAYLOAD_SIZE;
+		int parts = (segment.getLength()+PART_SIZE-1)/PART_SIZE;
+		List<ConnectedProtocolMessage> messages = new ArrayList<ConnectedProtocolMessage>(parts);
+		for(int partIndex = 0; partIndex < parts; ++partIndex) {
+			int offset = partIndex*PART_SIZE;
+			ByteArray payload = segment.subArray(offset, Math.min(PART_SIZE, segment.getLength()-offset));
+			messages.add(new ConnectedProtocolMessage(expiryTime, flags, uuid, new MultiPartParams(partIndex, parts), null, bulkParams, payload, null));
+		}
+		AccedSend accedSend = new AccedSend(expiryTime, uuid, messages);
+		accedSend.start();
+		return accedSend.result;
+	}
+	
+	private interface IBulkSource {
+		ByteArray getSegment(long offset, int segmentLength) throws IOException;
+	}
+	
+	/**
+	 * An acced message in flight, resent from the retransmit timer until every part is acced or it expires.
+	 * <p>
+	 * Parts are first sent as the send window of the socket has room for them.
+	 * Parts after the last acced one are resent when no new accs have come for a retransmit timeout. 
+	 * The timeout is doubled every time resending does not lead to new accs.
+	 * Gaps below the last acced part are lost rather than on their way, so they are resent right away the first time.
+	 */
+	private class AccedSend implements Runnable, AccListener.IAccProgressListener, SendWindow.IWindowListener {
+		private static final long RESENT = -1;
+		private final long expiryTime;
+		private final List<ConnectedProtocolMessage> messages; //Ordered by part index
+		private final AtomicLongArray sendTimes; //In ns, RESENT for parts that have been resent
+		private final AccListener accListener;
+		private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		private volatile int unsent = 0; //Index of the first part not sent yet. Only written when holding this.
+		private int backoffs = 0; //Only touched by the timer thread
+		private int lastProgress = 0; //Only touched by the timer thread
+		private boolean resentLastTime = false; //Only touched by the timer thread
+		private volatile HashedWheelTimer.Timeout resendTimeout = null;
+		private final AtomicBoolean fastRetransmitScheduled = new AtomicBoolean(false);
+		private final Runnable fastRetransmit = new Runnable() {
+			@Override
+			public void run() {
+				fastRetransmitScheduled.set(false);
+				if(!result.isDone()) {
+					try {
+						resendGaps();
+					} catch (IOException | RuntimeException e) {
+						result.completeExceptionally(e);
 					}
 				}
-				if(allDone) {
-					return true;
+			}
+		};
+		
+		public AccedSend(long expiryTime, UUID uuid, List<ConnectedProtocolMessage> messages) {
+			this.expiryTime = expiryTime;
+			this.messages = messages;
+			this.sendTimes = new AtomicLongArray(messages.size());
+			this.accListener = new AccListener(uuid, messages.size(), unifiedClock, this);
+		}
+		
+		public void start() throws IOException {
+			accedSendsInFlight.add(this);
+			protocolMessageEventSource.addAccListener(accListener.uuid, accListener);
+			result.whenComplete(new BiConsumer<Boolean, Throwable>() {
+				@Override
+				public void accept(Boolean acced, Throwable exception) {
+					onDone();
+				}
+			});
+			try {
+				sendUnsent();
+			} catch (IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+				throw e;
+			}
+			scheduleResend(rttEstimator.getRetransmitTimeout(0));
+		}
+		
+		@Override
+		public void run() {
+			if(result.isDone()) {
+				return;
+			}
+			if(unifiedClock.getTime() >= expiryTime) {
+				result.complete(false);
+				return;
+			}
+			int progress = accListener.getProgress();
+			if(progress != lastProgress) {
+				backoffs = 0;
+				lastProgress = progress;
+			} else if(resentLastTime) {
+				backoffs++;
+			}
+			long retransmitTimeout = rttEstimator.getRetransmitTimeout(backoffs);
+			long sinceProgress = accListener.getTimeSinceProgress();
+			boolean stalled = sinceProgress >= retransmitTimeout;
+			int resent;
+			try {
+				resent = resendUnacced(stalled);
+				sendUnsent();
+			} catch (IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+				return;
+			}
+			resentLastTime = resent > 0;
+			if(resentLastTime && stalled) {
+				sendWindow.onTimeout(unifiedClock.getTime(), rttEstimator.getRoundTripTime());
+			}
+			//Like a timer that is restarted on every acc, without touching the timer from the receiving thread
+			scheduleResend(resentLastTime ? retransmitTimeout : retransmitTimeout-sinceProgress);
+		}
+		
+		private void scheduleResend(long delay) {
+			if(!result.isDone()) {
+				//Wake up on expiry at the latest, so that a backed off timer does not delay the result
+				resendTimeout = timer.schedule(this, Math.min(delay, expiryTime-unifiedClock.getTime()));
+				if(result.isDone()) {
+					resendTimeout.cancel();
+				}
+			}
+		}
+		
+		/**
+		 * Sends the parts that have not been sent yet, as far as the send window allows. 
+		 * Waits for room in the window for the rest.
+		 */
+		private synchronized void sendUnsent() throws IOException {
+			int sentBefore = unsent;
+			while(unsent < messages.size() && !result.isDone()) {
+				if(!sendWindow.tryAcquire()) {
+					if(sendWindow.awaitRoom(this)) {
+						break;
+					}
+					continue;
 				}
+				sendTimes.set(unsent, System.nanoTime());
+				unsent++;
+			}
+			if(unsent != sentBefore) {
 				try {
-					Thread.sleep(firstWait ? accSendInitialInterval : accSendInterval);
-					firstWait = false;
-				} catch(InterruptedException e) {
-					return false;
+					messageSender.sendAll(messages.subList(sentBefore, unsent));
+				} catch (IOException | RuntimeException e) {
+					sendWindow.release(unsent-sentBefore);
+					unsent = sentBefore;
+					throw e;
 				}
+				//Parts that were just sent are not overdue
+				accListener.onSent();
 			}
-			return false;
-		} finally {
-			protocolMessageEventSource.removeListener(accListener);
+		}
+		
+		@Override
+		public void onRoom() {
+			if(!result.isDone()) {
+				try {
+					sendUnsent();
+				} catch (IOException | RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			}
+		}
+		
+		/**
+		 * Resends the gaps below the last acced part, and the sent parts after it if <code>stalled</code>.
+		 * 
+		 * @return how many parts were resent
+		 */
+		private int resendUnacced(boolean stalled) throws IOException {
+			int highestAcced = accListener.getHighestAcced();
+			int sent = unsent;
+			List<ConnectedProtocolMessage> resends = new ArrayList<ConnectedProtocolMessage>();
+			for(int partIndex = accListener.nextUnacced(0); partIndex >= 0 && partIndex < sent && (stalled || partIndex < highestAcced) && !result.isDone(); partIndex = accListener.nextUnacced(partIndex+1)) {
+				sendTimes.set(partIndex, RESENT);
+				resends.add(messages.get(partIndex));
+			}
+			int resent = resends.size();
+			if(resent > 0) {
+				messageSender.sendAll(resends);
+				rttEstimator.onRetransmissions(resent);
+			}
+			return resent;
+		}
+		
+		/**
+		 * Resends the gaps below the last acced part that have not been resent before.
+		 */
+		private void resendGaps() throws IOException {
+			int highestAcced = accListener.getHighestAcced();
+			List<ConnectedProtocolMessage> resends = new ArrayList<ConnectedProtocolMessage>();
+			for(int partIndex = accListener.nextUnacced(0); partIndex >= 0 && partIndex < highestAcced && !result.isDone(); partIndex = accListener.nextUnacced(partIndex+1)) {
+				if(sendTimes.get(partIndex) != RESENT) {
+					sendTimes.set(partIndex, RESENT);
+					resends.add(messages.get(partIndex));
+				}
+			}
+			int resent = resends.size();
+			if(resent > 0) {
+				messageSender.sendAll(resends);
+				rttEstimator.onRetransmissions(resent);
+				sendWindow.onLoss(unifiedClock.getTime(), rttEstimator.getRoundTripTime());
+			}
+		}
+		
+		@Override
+		public void onAcced(int partIndex, int accedParts, int credit, boolean allAcced) {
+			if(partIndex >= 0) {
+				long sendTime = sendTimes.get(partIndex);
+				if(sendTime != RESENT && sendTime != 0) {
+					rttEstimator.onSample((System.nanoTime()-sendTime)/1000);
+				}
+			}
+			if(allAcced) {
+				result.complete(true);
+			} else if(accListener.nextUnacced(0) < accListener.getHighestAcced() && fastRetransmitScheduled.compareAndSet(false, true)) {
+				timer.schedule(fastRetransmit, 0);
+			}
+			sendWindow.onAcced(accedParts, credit);
+		}
+		
+		private void onDone() {
+			HashedWheelTimer.Timeout resendTimeoutSnapshot = resendTimeout;
+			if(resendTimeoutSnapshot != null) {
+				resendTimeoutSnapshot.cancel();
+			}
+			protocolMessageEventSource.removeAccListener(accListener.uuid, accListener);
+			sendWindow.stopAwaitingRoom(this);
+			int unaccedSentParts;
+			synchronized (this) {
+				//Waits out a send in progress. No parts are sent after this, since the result is done.
+				unaccedSentParts = accListener.close(unsent);
+			}
+			//Outside of the lock, since it lets other sends send
+			sendWindow.release(unaccedSentParts);
+			accedSendsInFlight.remove(this);
 		}
 	}
 	
@@ -466,122 +1136,338 @@ public final class McnpSocket implements Closeable {
 	}
 	
 	private static class IncommingMessageHandler implements IProtocolMessageListener, IReleasable {
+		private static final long IDLE_PRUNE_INTERVAL = 250;
 		private volatile boolean released = false;
 		private volatile boolean listening = false;
 		private IProtocolMessageEventSource protocolMessageEventSource = null;
-		private IClock unifiedClock;
-		private IBoundProtocolMessageSender messageSender;
-		private IAllocator accAllocator;
-		private UuidCache completedUuidCache;
-		private MultipartHandler multipartHandler;
+		//Set when connected and then read by the receive threads without locking
+		private volatile IClock unifiedClock;
+		private volatile IBoundProtocolMessageSender messageSender;
+		private volatile UuidCaches completedUuidCaches;
+		private long dedupWindowDuration = 0; //Guarded by this
+		private int dedupExpectedPerWindow = 0; //0 to remember UUIDs exactly. Guarded by this
+		private double dedupFalseDropRate = 0; //Guarded by this
+		private MultipartHandler multipartHandler; //Created when first needed, since its working memory is large
+		private MultipartStreamer multipartStreamer;
+		private BulkReceiver bulkReceiver;
 		private final ListenerList<IMcnpMessageListener> mcnpMessageListeners = new ListenerList<>(); 
+		private volatile IMcnpChunkListener chunkListener = null;
+		private volatile IMcnpBulkListener bulkListener = null;
+		private final Map<Byte, IMcnpCodec> codecs = new ConcurrentHashMap<Byte, IMcnpCodec>(); //To decode with, by id
+		private final AtomicLong decodeFailures = new AtomicLong();
 		private final ResourceHolder resourceHolder = new ResourceHolder();
 		private final MessageQueue<ConnectedProtocolMessage> messageQueue = resourceHolder.addReleasable(new MessageQueue<>());
 		private final List<ConnectedProtocolMessage> harvestedMessages = new ArrayList<>();
+		private final List<ConnectedProtocolMessage> laneHarvestedMessages = new ArrayList<>();
+		private final Object dispatchLock = new Object(); //Mutex
+		private volatile int maxBatchSize = 1;
+		private volatile long maxBatchLatency = 0;
+		private volatile Executor dispatchExecutor = null;
+		private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+		private volatile SackTracker sackTracker;
+		private HashedWheelTimer timer; //Guarded by this
+		private IdlePrune idlePrune = null; //Guarded by this. Only while dispatching with an executor
+		private volatile boolean zeroCopyReceive = false;
 		//TODO replace with AutoLooper
 		private final Looper looper = resourceHolder.addReleasable(new Looper(new Runnable() {
 			@Override
 			public void run() {
 				harvestedMessages.clear();
-				messageQueue.harvest(harvestedMessages);
-				
+				try {
+					//Parks until there is something to deliver. Wakes up now and then to prune even if idle.
+					messageQueue.awaitHarvest(harvestedMessages, maxBatchSize, maxBatchLatency, IDLE_PRUNE_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				dispatch(harvestedMessages);
+			}
+		}) {
+			@Override
+			public void onAfterStopped() {
+				harvestedMessages.clear();
+			}
+		});
+		
+		//Used instead of the looper when there is a dispatch executor. Only one runs at a time, so message order is kept.
+		private final Runnable dispatchTask = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					laneHarvestedMessages.clear();
+					messageQueue.harvest(laneHarvestedMessages);
+					dispatch(laneHarvestedMessages);
+				} finally {
+					dispatchScheduled.set(false);
+				}
+				if(!messageQueue.isEmpty()) {
+					scheduleDispatch();
+				}
+			}
+		};
+		
+		/**
+		 * Dispatches every {@value IncommingMessageHandler#IDLE_PRUNE_INTERVAL} ms when there is a dispatch executor, 
+		 * so that what has expired is pruned also while nothing arrives, like the looper does.
+		 */
+		private class IdlePrune implements Runnable {
+			private HashedWheelTimer.Timeout timeout; //Guarded by the handler
+			
+			@Override
+			public void run() {
+				scheduleDispatch();
+				synchronized (IncommingMessageHandler.this) {
+					if(idlePrune == this) {
+						timeout = timer.schedule(this, IDLE_PRUNE_INTERVAL);
+					}
+				}
+			}
+		}
+		
+		public IncommingMessageHandler() {
+			//Always decoded, so that compressed messages are received also without setting a codec
+			addCodec(new DeflateCodec());
+		}
+		
+		private void scheduleDispatch() {
+			Executor executor = dispatchExecutor;
+			if(executor != null && !released && dispatchScheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(dispatchTask);
+				} catch (RuntimeException e) {
+					dispatchScheduled.set(false);
+					throw e;
+				}
+			}
+		}
+		
+		private void dispatch(List<ConnectedProtocolMessage> harvested) {
+			synchronized (dispatchLock) {
 				//TODO reuse?
 				List<OutgoingMcnpMessage> outgoingMcnpMessages = new ArrayList<>(); 
-				for(ConnectedProtocolMessage protocolMessage : harvestedMessages) {
-					if(protocolMessage.isMultipart()) {
-						synchronized (IncommingMessageHandler.this) {
-							multipartHandler.supply(protocolMessage, outgoingMcnpMessages);
+				for(ConnectedProtocolMessage protocolMessage : harvested) {
+					if(protocolMessage.isMultipart() && protocolMessage.isBulk()) {
+						IMcnpBulkListener bulkListenerSnapshot = bulkListener;
+						try {
+							if(bulkListenerSnapshot != null && bulkReceiver.supply(protocolMessage, bulkListenerSnapshot) && protocolMessage.isAcced()) {
+								acc(protocolMessage);
+							}
+						} finally {
+							protocolMessage.release();
+						}
+					} else if(protocolMessage.isMultipart()) {
+						IMcnpChunkListener streamTo = chunkListener;
+						try {
+							if(streamTo != null && !protocolMessage.isCompressed()) {
+								if(multipartStreamer.supply(protocolMessage, streamTo) && protocolMessage.isAcced()) {
+									acc(protocolMessage);
+								}
+							} else {
+								synchronized (IncommingMessageHandler.this) {
+									getMultipartHandler().supply(protocolMessage, outgoingMcnpMessages);
+								}
+							}
+						} finally {
+							protocolMessage.release(); //Parts are copied by the multipart handler, or handed over before this
 						}
 					} else {
 						UUID messageUUID = protocolMessage.getUuid(); 
 						
-						ByteArray data = protocolMessage.getPayload();
-						byte[] mcnpData = new byte[data.getLength()];
-						data.copyTo(new ByteArray(mcnpData));
-						McnpMessage mcnpMessage = new McnpMessage(mcnpData);
+						McnpMessage mcnpMessage;
+						if(protocolMessage.getPayloadMemory() == null) {
+							//Payload was already copied out of the receive buffer when parsed
+							mcnpMessage = new McnpMessage(protocolMessage.getPayload());
+						} else if(zeroCopyReceive) {
+							//Takes over the reference retained when queued
+							mcnpMessage = new McnpMessage(protocolMessage.getPayload(), protocolMessage.getPayloadMemory());
+						} else {
+							mcnpMessage = new McnpMessage(protocolMessage.getPayload().copy());
+							protocolMessage.release();
+						}
 						synchronized (IncommingMessageHandler.this) {
-							if(!completedUuidCache.hasUUID(messageUUID)) {
-								outgoingMcnpMessages.add(new OutgoingMcnpMessage(protocolMessage.getExpiryTime(), messageUUID, mcnpMessage));
+							if(!completedUuidCaches.get(protocolMessage).hasUUID(messageUUID)) {
+								outgoingMcnpMessages.add(new OutgoingMcnpMessage(protocolMessage.getExpiryTime(), messageUUID, mcnpMessage, protocolMessage.isCompressed(), protocolMessage.isAcced()));
+							} else {
+								mcnpMessage.release();
 							}
 						}
 					}
 				}
-				harvestedMessages.clear();
+				harvested.clear();
 				synchronized (IncommingMessageHandler.this) {
 					Iterator<OutgoingMcnpMessage> iterator = outgoingMcnpMessages.iterator();
 					while(iterator.hasNext()) {
 						OutgoingMcnpMessage outgoingMcnpMessage = iterator.next();
+						IUuidCache completedUuidCache = completedUuidCaches.get(outgoingMcnpMessage.acced);
 						if(completedUuidCache.hasUUID(outgoingMcnpMessage.protocolMessageUUID)) {
+							outgoingMcnpMessage.mcnpMessage.release();
 							iterator.remove();
 						} else {
 							completedUuidCache.addUuid(outgoingMcnpMessage.expiryTime, outgoingMcnpMessage.protocolMessageUUID);
 						}
 					}
-					completedUuidCache.prune();
-					multipartHandler.prune();
+					completedUuidCaches.prune();
+					if(multipartHandler != null) {
+						multipartHandler.prune();
+					}
 				}
+				multipartStreamer.prune(chunkListener);
+				bulkReceiver.prune(bulkListener);
 				
 				Iterator<OutgoingMcnpMessage> iterator = outgoingMcnpMessages.iterator();
 				while (iterator.hasNext()) {
-					mcnpMessageListeners.forEach(new OnMcnpMessageEvent(iterator.next().mcnpMessage));
+					OutgoingMcnpMessage outgoingMcnpMessage = iterator.next();
+					McnpMessage mcnpMessage = outgoingMcnpMessage.mcnpMessage;
+					if(outgoingMcnpMessage.compressed) {
+						mcnpMessage = decode(mcnpMessage);
+						if(mcnpMessage == null) {
+							iterator.remove();
+							continue;
+						}
+					}
+					try {
+						mcnpMessageListeners.forEach(new OnMcnpMessageEvent(mcnpMessage));
+					} finally {
+						mcnpMessage.release();
+					}
 					iterator.remove();
 				}
 			}
-		}) {
-			@Override
-			public void onAfterStopped() {
-				harvestedMessages.clear();
-			}
-		});
+		}
 		
 		@Override
 		public void onProtocolMessage(IProtocolMessage protocolMessage) {
-			synchronized (this) {
-				if(!mcnpMessageListeners.isEmpty() && !released) {
-					if(protocolMessage instanceof ConnectedProtocolMessage) {
-						ConnectedProtocolMessage connectedProtocolMessage = (ConnectedProtocolMessage) protocolMessage;
-						if(unifiedClock.getTime() <= connectedProtocolMessage.getExpiryTime()) {
-							if(connectedProtocolMessage.isAcced()) {
-								try {
-									messageSender.send(new AccProtocolMessage(connectedProtocolMessage, accAllocator));
-								} catch (IOException e) {
-									e.printStackTrace();
-									//TODO handle better
-								}
-							}
-							
-							if(!completedUuidCache.hasUUID(connectedProtocolMessage.getUuid())) {
-								//TODO We should verify that the UUID is not already queued in the messagequeue...
-								messageQueue.queueMessage(connectedProtocolMessage);
+			//Not locked, so that receive threads never wait for the dispatcher
+			if(hasListeners() && !released) {
+				if(protocolMessage instanceof ConnectedProtocolMessage) {
+					ConnectedProtocolMessage connectedProtocolMessage = (ConnectedProtocolMessage) protocolMessage;
+					//Bulk transfers are not acced without a bulk listener, so that the sender gives up
+					boolean wanted = !connectedProtocolMessage.isBulk() || bulkListener != null;
+					if(wanted && unifiedClock.getTime() <= connectedProtocolMessage.getExpiryTime()) {
+						boolean queued = true;
+						boolean accedOnDispatch = false;
+						if(!completedUuidCaches.get(connectedProtocolMessage).hasUUID(connectedProtocolMessage.getUuid())) {
+							//TODO We should verify that the UUID is not already queued in the messagequeue...
+							connectedProtocolMessage.retain();
+							if(messageQueue.queueMessage(connectedProtocolMessage)) {
+								accedOnDispatch = isAccedOnDispatch(connectedProtocolMessage);
+								scheduleDispatch();
+							} else {
+								connectedProtocolMessage.release();
+								queued = false;
 							}
 						}
+						
+						//Messages that did not fit in the queue are not acced, so that they are resent. Accs tell the sender how much more fits.
+						if(connectedProtocolMessage.isAcced() && queued && !accedOnDispatch) {
+							acc(connectedProtocolMessage);
+						}
 					}
 				}
 			}
 		}
 		
-		public synchronized void onSocketConnected(IProtocolMessageEventSource protocolMessageEventSource, IClock unifiedClock, IBoundProtocolMessageSender messageSender, IAllocator accAllocator) {
+		/**
+		 * Streamed and bulk parts are acced when the streamer or sink has taken them, so that parts it drops are resent,
+		 * and parts of refused transfers are not acced at all.
+		 */
+		private boolean isAccedOnDispatch(ConnectedProtocolMessage message) {
+			return message.isMultipart() && (message.isBulk() || (!message.isCompressed() && chunkListener != null));
+		}
+		
+		private void acc(ConnectedProtocolMessage message) {
+			try {
+				int credit = messageQueue.getFreeSlots();
+				if(message.isMultipart()) {
+					SackProtocolMessage sack = sackTracker.onPart(message, credit, unifiedClock.getTime());
+					if(sack != null) {
+						messageSender.send(sack);
+					}
+				} else {
+					messageSender.send(new AccProtocolMessage(message, credit));
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				//TODO handle better
+			}
+		}
+		
+		public synchronized void onSocketConnected(IProtocolMessageEventSource protocolMessageEventSource, IClock unifiedClock, IBoundProtocolMessageSender messageSender, HashedWheelTimer timer, RttEstimator rttEstimator) {
 			this.protocolMessageEventSource = protocolMessageEventSource;
 			this.unifiedClock = unifiedClock;
-			this.completedUuidCache = resourceHolder.addReleasable(new UuidCache(unifiedClock));
+			IUuidCache accedUuidCache = resourceHolder.addReleasable(new UuidCache(unifiedClock));
+			if(dedupExpectedPerWindow > 0) {
+				IUuidCache unaccedUuidCache = resourceHolder.addReleasable(new BloomUuidCache(unifiedClock, dedupWindowDuration, dedupExpectedPerWindow, dedupFalseDropRate));
+				this.completedUuidCaches = new UuidCaches(accedUuidCache, unaccedUuidCache);
+			} else {
+				this.completedUuidCaches = new UuidCaches(accedUuidCache, accedUuidCache);
+			}
 			this.messageSender = messageSender;
-			this.accAllocator = accAllocator;
-			//TODO get sizes for allocators from socket settings instead.
-			IAllocator multipartWorkingMemory = resourceHolder.addReleasable(new Allocator(UdpUtil.MAX_UDP_PAYLOAD*100));
-			this.multipartHandler = resourceHolder.addReleasable(new MultipartHandler(multipartWorkingMemory, unifiedClock, completedUuidCache));
+			this.sackTracker = new SackTracker(unifiedClock, timer, rttEstimator, messageSender);
+			this.timer = timer;
+			this.multipartStreamer = resourceHolder.addReleasable(new MultipartStreamer(unifiedClock, completedUuidCaches));
+			this.bulkReceiver = resourceHolder.addReleasable(new BulkReceiver(unifiedClock, completedUuidCaches.get(true)));
 			maybeStart();
 		}
 		
+		private synchronized MultipartHandler getMultipartHandler() {
+			if(multipartHandler == null) {
+				//TODO get sizes for allocators from socket settings instead.
+				//Off-heap, so that the heap does not grow with the number of connections
+				IAllocator multipartWorkingMemory = resourceHolder.addReleasable(new SlabAllocator(UdpUtil.MAX_UDP_PAYLOAD*100, true));
+				this.multipartHandler = resourceHolder.addReleasable(new MultipartHandler(multipartWorkingMemory, unifiedClock, completedUuidCaches));
+			}
+			return multipartHandler;
+		}
+		
+		/**
+		 * @return the decoded message, or <code>null</code> if it can not be decoded. Releases <code>mcnpMessage</code>.
+		 */
+		private McnpMessage decode(McnpMessage mcnpMessage) {
+			try {
+				return new McnpMessage(Compression.decode(mcnpMessage.getData(), codecs));
+			} catch (IOException e) {
+				decodeFailures.incrementAndGet(); //Malformed, or from an unknown codec
+				return null;
+			} finally {
+				mcnpMessage.release();
+			}
+		}
+		
+		private boolean hasListeners() {
+			return !mcnpMessageListeners.isEmpty() || chunkListener != null || bulkListener != null;
+		}
+		
 		private synchronized void maybeStart() {
 			if(released || protocolMessageEventSource == null) {
 				return;
 			}
-			if(!mcnpMessageListeners.isEmpty()) {
+			if(hasListeners()) {
 				if(!listening) {
-					protocolMessageEventSource.addListener(this);
+					//Batches are fired as the connected messages in them
+					protocolMessageEventSource.addListener(BaseProtocolMessage.TYPE_CONNECTED, this);
+					protocolMessageEventSource.addListener(BaseProtocolMessage.TYPE_BATCH, this);
 					listening = true;
 				}
-				looper.start();
+				if(dispatchExecutor == null) {
+					looper.start();
+				} else {
+					scheduleDispatch();
+					startIdlePrune();
+				}
+			}
+		}
+		
+		private synchronized void startIdlePrune() {
+			if(idlePrune == null) {
+				idlePrune = new IdlePrune();
+				idlePrune.timeout = timer.schedule(idlePrune, IDLE_PRUNE_INTERVAL);
+			}
+		}
+		
+		private synchronized void stopIdlePrune() {
+			if(idlePrune != null) {
+				idlePrune.timeout.cancel();
+				idlePrune = null;
 			}
 		}
 		
@@ -589,12 +1475,15 @@ public final class McnpSocket implements Closeable {
 			if(released) {
 				return;
 			}
-			if(mcnpMessageListeners.isEmpty()) {
+			if(!hasListeners()) {
 				if(protocolMessageEventSource != null) {
-					protocolMessageEventSource.removeListener(this);
+					protocolMessageEventSource.removeListener(BaseProtocolMessage.TYPE_CONNECTED, this);
+					protocolMessageEventSource.removeListener(BaseProtocolMessage.TYPE_BATCH, this);
 				}
 				listening = false;
 				looper.stop();
+				stopIdlePrune();
+				messageQueue.wakeUp();
 			}
 		}
 
@@ -603,40 +1492,240 @@ public final class McnpSocket implements Closeable {
 			maybeStart();
 		}
 		
+		public void setDispatchBatching(int maxBatchSize, long maxBatchLatency) {
+			this.maxBatchSize = maxBatchSize;
+			this.maxBatchLatency = maxBatchLatency;
+			messageQueue.wakeUp();
+		}
+		
+		public void setZeroCopyReceive(boolean zeroCopyReceive) {
+			this.zeroCopyReceive = zeroCopyReceive;
+		}
+		
+		public synchronized void setProbabilisticDedup(long windowDuration, int expectedPerWindow, double falseDropRate) {
+			if(completedUuidCaches != null) {
+				throw new IllegalStateException("Must be set before connecting");
+			}
+			if(expectedPerWindow <= 0 || falseDropRate <= 0 || falseDropRate >= 1) {
+				throw new IllegalArgumentException("Need a positive message rate and a drop rate between 0 and 1");
+			}
+			this.dedupWindowDuration = windowDuration;
+			this.dedupExpectedPerWindow = expectedPerWindow;
+			this.dedupFalseDropRate = falseDropRate;
+		}
+		
+		public void addCodec(IMcnpCodec codec) {
+			codecs.put(codec.getId(), codec);
+		}
+		
+		public long getDecodeFailures() {
+			return decodeFailures.get();
+		}
+		
+		public synchronized void setReceiveQueue(int maxLength, OverflowPolicy overflowPolicy) {
+			if(completedUuidCaches != null) {
+				throw new IllegalStateException("Must be set before connecting");
+			}
+			messageQueue.configure(maxLength, overflowPolicy);
+		}
+		
+		public long getDroppedMessages() {
+			return messageQueue.getDroppedMessages();
+		}
+		
+		public synchronized void setDispatchExecutor(Executor dispatchExecutor) {
+			this.dispatchExecutor = dispatchExecutor;
+			if(dispatchExecutor != null) {
+				looper.stop();
+				messageQueue.wakeUp();
+			} else {
+				stopIdlePrune();
+			}
+			maybeStart();
+		}
+		
 		public synchronized void removeListener(IMcnpMessageListener listener) {
 			mcnpMessageListeners.removeListener(listener);
 			maybeStop();
 		}
+		
+		public synchronized void setChunkListener(IMcnpChunkListener chunkListener) {
+			this.chunkListener = chunkListener;
+			if(chunkListener != null) {
+				maybeStart();
+			} else {
+				maybeStop();
+			}
+		}
+		
+		public synchronized void setBulkListener(IMcnpBulkListener bulkListener) {
+			this.bulkListener = bulkListener;
+			if(bulkListener != null) {
+				maybeStart();
+			} else {
+				maybeStop();
+			}
+		}
 
 		@Override
 		public synchronized void release() {
 			released = true;
-			protocolMessageEventSource.removeListener(this);
+			stopIdlePrune();
+			protocolMessageEventSource.removeListener(BaseProtocolMessage.TYPE_CONNECTED, this);
+			protocolMessageEventSource.removeListener(BaseProtocolMessage.TYPE_BATCH, this);
+			List<ConnectedProtocolMessage> undispatched = new ArrayList<ConnectedProtocolMessage>();
+			messageQueue.harvest(undispatched);
+			for(ConnectedProtocolMessage protocolMessage : undispatched) {
+				protocolMessage.release();
+			}
 			resourceHolder.release();
 		}
 	}
 	
 	private static class AccListener implements IProtocolMessageListener {
-		private final Set<Long> checksums;
+		private final UUID uuid;
+		private final IClock clock;
+		private final BitSet unacced; //Guarded by itself
+		private int highestAcced = -1; //Guarded by unacced
+		private long lastProgressTime; //Guarded by unacced
+		private int progress = 0; //Guarded by unacced
+		private boolean closed = false; //Guarded by unacced
+		private final IAccProgressListener progressListener;
 		
-		public AccListener(Collection<Long> checksums) {
-			this.checksums = new HashSet<>(checksums);
+		public AccListener(UUID uuid, int parts, IClock clock, IAccProgressListener progressListener) {
+			this.uuid = uuid;
+			this.clock = clock;
+			this.progressListener = progressListener;
+			this.unacced = new BitSet(parts);
+			this.unacced.set(0, parts);
+			this.lastProgressTime = clock.getTime();
 		}
 
 		@Override
 		public void onProtocolMessage(IProtocolMessage protocolMessage) {
+			int accedPartIndex = -1;
+			int accedParts = 0;
+			int credit = 0;
+			boolean allAcced = false;
 			if(protocolMessage instanceof AccProtocolMessage) {
-				long accChecksum = ((AccProtocolMessage) protocolMessage).getAccChecksum();
-				synchronized (checksums) {
-					checksums.remove(accChecksum);
+				AccProtocolMessage accProtocolMessage = (AccProtocolMessage) protocolMessage;
+				if(uuid.equals(accProtocolMessage.getUuid())) {
+					synchronized (unacced) {
+						int partIndex = accProtocolMessage.getPartIndex();
+						if(unacced.get(partIndex) && !closed) {
+							unacced.clear(partIndex);
+							accedPartIndex = partIndex;
+							accedParts = 1;
+							credit = accProtocolMessage.getCredit();
+							allAcced = onProgress(partIndex);
+						}
+					}
+				}
+			} else if(protocolMessage instanceof SackProtocolMessage) {
+				SackProtocolMessage sackProtocolMessage = (SackProtocolMessage) protocolMessage;
+				if(uuid.equals(sackProtocolMessage.getUuid())) {
+					synchronized (unacced) {
+						BitSet receivedParts = sackProtocolMessage.getReceivedParts();
+						if(unacced.intersects(receivedParts) && !closed) {
+							int lastReceived = receivedParts.length()-1;
+							if(unacced.get(lastReceived)) {
+								//The sack was most likely caused by this part
+								accedPartIndex = lastReceived;
+							}
+							int unaccedBefore = unacced.cardinality();
+							unacced.andNot(receivedParts);
+							accedParts = unaccedBefore-unacced.cardinality();
+							credit = sackProtocolMessage.getCredit();
+							allAcced = onProgress(lastReceived);
+						}
+					}
+				}
+			}
+			if(accedParts > 0) {
+				progressListener.onAcced(accedPartIndex, accedParts, credit, allAcced);
+			}
+		}
+		
+		/**
+		 * @return if this was the last unacced part
+		 */
+		private boolean onProgress(int accedPartIndex) {
+			highestAcced = Math.max(highestAcced, accedPartIndex);
+			lastProgressTime = clock.getTime();
+			progress++;
+			return unacced.isEmpty();
+		}
+		
+		/**
+		 * Parts have been sent for the first time. They count as progress, so that they are not seen as overdue right away.
+		 */
+		public void onSent() {
+			synchronized (unacced) {
+				lastProgressTime = clock.getTime();
+			}
+		}
+		
+		/**
+		 * Stops taking accs.
+		 * 
+		 * @return how many of the parts below <code>sentParts</code> were not acced
+		 */
+		public int close(int sentParts) {
+			synchronized (unacced) {
+				closed = true;
+				int unaccedSentParts = 0;
+				for(int partIndex = unacced.nextSetBit(0); partIndex >= 0 && partIndex < sentParts; partIndex = unacced.nextSetBit(partIndex+1)) {
+					unaccedSentParts++;
 				}
+				return unaccedSentParts;
 			}
 		}
 		
-		public boolean isAcced(long checksum) {
-			synchronized (checksums) {
-				return !checksums.contains(checksum);
+		/**
+		 * @return a number that changes whenever new parts are acced
+		 */
+		public int getProgress() {
+			synchronized (unacced) {
+				return progress;
 			}
 		}
+		
+		/**
+		 * @return the index of the first unacced part at or after <code>fromPartIndex</code>, or -1 if there is none
+		 */
+		public int nextUnacced(int fromPartIndex) {
+			synchronized (unacced) {
+				return unacced.nextSetBit(fromPartIndex);
+			}
+		}
+		
+		/**
+		 * @return the highest part index that has been acced, or -1 if none has
+		 */
+		public int getHighestAcced() {
+			synchronized (unacced) {
+				return highestAcced;
+			}
+		}
+		
+		/**
+		 * @return ms since parts were last acced, or since the message was first sent
+		 */
+		public long getTimeSinceProgress() {
+			synchronized (unacced) {
+				return clock.getTime()-lastProgressTime;
+			}
+		}
+		
+		public interface IAccProgressListener {
+			/**
+			 * Called outside of any lock when new parts have been acced.
+			 * 
+			 * @param partIndex the part whose acc this most likely is, or -1 if not known
+			 * @param accedParts how many parts were newly acced
+			 * @param credit advertised by the receiver
+			 */
+			void onAcced(int partIndex, int accedParts, int credit, boolean allAcced);
+		}
 	}
 }
@@ -0,0 +1,23 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Source of message UUIDs. They only have to be unique among the messages that are alive on a connection,
+ * so they are taken from {@link ThreadLocalRandom} instead of the {@link java.security.SecureRandom} behind {@link UUID#randomUUID()}.
+ * The bits are laid out as in a version 4 UUID.
+ */
+/*package-protected*/ class MessageIds {
+	public static UUID next() {
+		return new UUID(nextMostSigBits(), nextLeastSigBits());
+	}
+	
+	public static long nextMostSigBits() {
+		return (ThreadLocalRandom.current().nextLong() & ~0xF000L) | 0x4000L; //Version 4
+	}
+	
+	public static long nextLeastSigBits() {
+		return (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L; //IETF variant
+	}
+}
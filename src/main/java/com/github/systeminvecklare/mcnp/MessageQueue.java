@@ -1,50 +1,377 @@
 package com.github.systeminvecklare.mcnp;
 
 import java.util.Collection;
-import java.util.LinkedList;
-import java.util.Queue;
-
-/*package-protected*/ class MessageQueue<T> implements IReleasable {
-	private int maxLength = 100;
-	private final Queue<T> messages = new LinkedList<T>();
-	private boolean released = false;
-	
-	public synchronized void queueMessage(T message) {
-		if(!released) {
-			if(messages.size() < maxLength) {
-				messages.add(message);
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between the threads that receive messages and the one that dispatches them.
+ * <p>
+ * Messages are kept in a ring where every slot has a sequence number telling if it is free to put into or to take from,
+ * so that putting and taking are a compare-and-set on the tail or head and nothing is locked or allocated.
+ * The consumer parks while there is nothing to harvest and is unparked by the producers.
+ * What is done when the queue is full is decided by the {@link OverflowPolicy}. A queued message that is dropped leaves
+ * an empty slot behind, which is skipped when taking, so that the messages are still taken in the order they were put.
+ */
+/*package-protected*/ class MessageQueue<T extends MessageQueue.IQueueable> implements IReleasable {
+	private static final int DEFAULT_MAX_LENGTH = 100;
+	private static final int MAX_REPLACE_ATTEMPTS = 8;
+	private static final long MIN_BLOCK_PARK = TimeUnit.MICROSECONDS.toNanos(10);
+	private static final long MAX_BLOCK_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private volatile Ring<T> ring = new Ring<T>(DEFAULT_MAX_LENGTH);
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+	private final AtomicLong droppedMessages = new AtomicLong(0);
+	private final AtomicLong wakeUps = new AtomicLong(0);
+	private volatile Thread waitingConsumer = null;
+	private volatile boolean released = false;
+
+	/**
+	 * What the overflow policies need to know of a queued message.
+	 */
+	public interface IQueueable extends IReleasable {
+		long getExpiryTime();
+		/**
+		 * @return if the message may be dropped once queued
+		 */
+		boolean isDroppable();
+	}
+
+	/**
+	 * Every message dropped is counted. Queued messages dropped to make room are released, while the given message is left to the caller.
+	 *
+	 * @return if the message was queued
+	 */
+	public boolean queueMessage(T message) {
+		if(released) {
+			return false;
+		}
+		Ring<T> ringSnapshot = ring;
+		boolean queued = ringSnapshot.offer(message);
+		if(!queued) {
+			queued = onOverflow(ringSnapshot, message);
+		}
+		if(queued) {
+			if(released) {
+				//Raced with release, which may have emptied the queue before this was put
+				drain();
 			} else {
-				System.err.println("Message queue overflow");
-//				throw new RuntimeException("Message queue overflow"); //TODO have specific error?
+				wakeConsumer();
 			}
 		}
+		return queued;
 	}
-	
-	public synchronized T poll() {
-		if(released) {
-			return null;
+
+	private boolean onOverflow(Ring<T> ringSnapshot, T message) {
+		OverflowPolicy policy = overflowPolicy;
+		if(policy == OverflowPolicy.BLOCK) {
+			long wakeUpsAtStart = wakeUps.get();
+			long park = MIN_BLOCK_PARK;
+			//Also gives up if the dispatcher is stopped or reconfigured, since it may then not come back to make room
+			while(!released && wakeUps.get() == wakeUpsAtStart && !Thread.currentThread().isInterrupted()) {
+				LockSupport.parkNanos(this, park);
+				if(ringSnapshot.offer(message)) {
+					return true;
+				}
+				park = Math.min(park*2, MAX_BLOCK_PARK);
+			}
+		} else if(policy != OverflowPolicy.DROP_NEWEST) {
+			for(int attempt = 0; attempt < MAX_REPLACE_ATTEMPTS && !released; ++attempt) {
+				if(ringSnapshot.offer(message)) {
+					return true; //Something was harvested meanwhile
+				}
+				int victimIndex = ringSnapshot.findVictim(policy == OverflowPolicy.DROP_MOST_EXPIRED);
+				if(victimIndex < 0) {
+					break; //Only acced messages queued
+				}
+				if(!ringSnapshot.hasRoomAtTail()) {
+					break; //Full of dropped slots behind a message not taken yet, so the incoming message could not be put last
+				}
+				T victim = ringSnapshot.elements.get(victimIndex);
+				if(victim == null || !victim.isDroppable()) {
+					continue; //Taken by the consumer, and maybe put into again
+				}
+				if(policy == OverflowPolicy.DROP_MOST_EXPIRED && message.getExpiryTime() <= victim.getExpiryTime()) {
+					break; //The incoming message expires first
+				}
+				if(ringSnapshot.drop(victimIndex, victim)) {
+					droppedMessages.incrementAndGet();
+					victim.release();
+					//Put last, to keep the order. The room may be taken by another producer first, then the loop goes on
+					if(ringSnapshot.offer(message)) {
+						return true;
+					}
+				}
+			}
 		}
-		return messages.poll();
+		droppedMessages.incrementAndGet();
+		return false;
+	}
+
+	public T poll() {
+		return ring.poll();
+	}
+
+	/**
+	 * @return how many more messages can be queued before it overflows
+	 */
+	public int getFreeSlots() {
+		Ring<T> ringSnapshot = ring;
+		return ringSnapshot.maxLength-ringSnapshot.size();
+	}
+
+	public boolean isEmpty() {
+		return ring.size() == 0;
 	}
-	
+
 	public boolean harvest(Collection<? super T> harvestedMessages) {
+		Ring<T> ringSnapshot = ring;
 		boolean atLeastOne = false;
-		synchronized (this) {
-			while(!messages.isEmpty()) {
-				harvestedMessages.add(messages.poll());
-				atLeastOne = true;
-			}
+		T message;
+		while((message = ringSnapshot.poll()) != null) {
+			harvestedMessages.add(message);
+			atLeastOne = true;
 		}
 		return atLeastOne;
 	}
-	
-	public synchronized void setMaxLength(int maxLength) {
-		this.maxLength = maxLength;
+
+	/**
+	 * Blocks until there is something to harvest, {@link #wakeUp()} is called or <code>idleTimeout</code> ms has passed.
+	 * <p>
+	 * If <code>maxBatchSize</code> is more than one, the harvest is held back until that many messages
+	 * are queued or <code>maxBatchLatency</code> ms has passed since the first message was seen.
+	 * <p>
+	 * Only one thread at a time may wait for a harvest.
+	 *
+	 * @return if at least one message was harvested
+	 */
+	public boolean awaitHarvest(Collection<? super T> harvestedMessages, int maxBatchSize, long maxBatchLatency, long idleTimeout) throws InterruptedException {
+		long wakeUpsAtStart = wakeUps.get();
+		if(!await(1, idleTimeout, wakeUpsAtStart) && isEmpty()) {
+			return false;
+		}
+		if(maxBatchSize > 1) {
+			await(maxBatchSize, maxBatchLatency, wakeUpsAtStart);
+		}
+		return harvest(harvestedMessages);
+	}
+
+	/**
+	 * @return if <code>size</code> messages are queued, or woken up
+	 */
+	private boolean await(int size, long timeout, long wakeUpsAtStart) throws InterruptedException {
+		long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+		while(ring.size() < size && !released && wakeUps.get() == wakeUpsAtStart) {
+			long remaining = deadline-System.nanoTime();
+			if(remaining <= 0) {
+				return false;
+			}
+			waitingConsumer = Thread.currentThread();
+			//Checked again after becoming visible to producers, so that none of them can put and miss unparking
+			if(ring.size() < size && !released && wakeUps.get() == wakeUpsAtStart) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			waitingConsumer = null;
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Makes any thread blocked in {@link #awaitHarvest(Collection, int, long, long)} return.
+	 */
+	public void wakeUp() {
+		wakeUps.incrementAndGet();
+		wakeConsumer();
+	}
+
+	private void wakeConsumer() {
+		Thread consumer = waitingConsumer;
+		if(consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Must be done before anything is queued.
+	 */
+	public void configure(int maxLength, OverflowPolicy overflowPolicy) {
+		if(maxLength < 1 || maxLength > 1 << 30) {
+			throw new IllegalArgumentException("Max length must be between 1 and 2^30");
+		}
+		if(overflowPolicy == null) {
+			throw new IllegalArgumentException("No overflow policy");
+		}
+		if(ring.tail.get() != 0) {
+			throw new IllegalStateException("Must be configured before anything is queued");
+		}
+		this.ring = new Ring<T>(maxLength);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public long getDroppedMessages() {
+		return droppedMessages.get();
 	}
 
 	@Override
-	public synchronized void release() {
-		messages.clear();
+	public void release() {
 		released = true;
+		drain();
+		wakeUp();
+	}
+
+	private void drain() {
+		T message;
+		while((message = ring.poll()) != null) {
+			message.release();
+		}
+	}
+
+	/**
+	 * The slots are a power of two, at least twice <code>maxLength</code> (up to 2^30) to have room for dropped slots. Positions only grow,
+	 * and slot <code>position & mask</code> has sequence number <code>position</code> when it is free to put into, and <code>position+1</code>
+	 * when it can be taken from. A slot that can be taken from but holds <code>null</code> has been dropped.
+	 * Taking is safe from several threads, which lets release and harvest race.
+	 */
+	private static final class Ring<T extends IQueueable> {
+		private final int maxLength;
+		private final int mask;
+		private final AtomicReferenceArray<T> elements;
+		private final AtomicLongArray sequences;
+		private final AtomicLong head = new AtomicLong(0); //Next position to take from
+		private final AtomicLong tail = new AtomicLong(0); //Next position to put into
+		private final AtomicLong droppedSlots = new AtomicLong(0); //Between head and tail
+
+		public Ring(int maxLength) {
+			int capacity = (int) Math.min(1 << 30, Long.highestOneBit(2L*maxLength-1) << 1);
+			this.maxLength = maxLength;
+			this.mask = capacity-1;
+			this.elements = new AtomicReferenceArray<T>(capacity);
+			this.sequences = new AtomicLongArray(capacity);
+			for(int i = 0; i < capacity; ++i) {
+				sequences.set(i, i);
+			}
+		}
+
+		public boolean offer(T element) {
+			long position = tail.get();
+			while(true) {
+				if(position-head.get()-droppedSlots.get() >= maxLength) {
+					return false;
+				}
+				int index = (int) position & mask;
+				long difference = sequences.get(index)-position;
+				if(difference == 0) {
+					if(tail.compareAndSet(position, position+1)) {
+						elements.lazySet(index, element);
+						sequences.set(index, position+1);
+						return true;
+					}
+				} else if(difference < 0 && !skipDropped()) {
+					return false; //Still being taken from a lap ago, or full of dropped slots behind a message not taken yet
+				}
+				position = tail.get();
+			}
+		}
+
+		public T poll() {
+			long position = head.get();
+			while(true) {
+				int index = (int) position & mask;
+				long difference = sequences.get(index)-(position+1);
+				if(difference == 0) {
+					if(head.compareAndSet(position, position+1)) {
+						//Swapped out, since an overflowing producer may drop it until now
+						T element = elements.getAndSet(index, null);
+						sequences.set(index, position+mask+1);
+						if(element != null) {
+							return element;
+						}
+						droppedSlots.decrementAndGet();
+					}
+				} else if(difference < 0) {
+					return null; //Empty, or still being put into
+				}
+				position = head.get();
+			}
+		}
+
+		public int size() {
+			long headSnapshot = head.get();
+			return (int) Math.max(0, Math.min(maxLength, tail.get()-headSnapshot-droppedSlots.get()));
+		}
+
+		public boolean hasRoomAtTail() {
+			return tail.get()-head.get() <= mask;
+		}
+
+		/**
+		 * Empties the slot, which is then skipped when taking.
+		 *
+		 * @return if <code>element</code> was still in the slot
+		 */
+		public boolean drop(int index, T element) {
+			//Counted first, so that a consumer skipping the slot never counts below zero
+			droppedSlots.incrementAndGet();
+			if(elements.compareAndSet(index, element, null)) {
+				return true;
+			}
+			droppedSlots.decrementAndGet();
+			return false;
+		}
+
+		/**
+		 * Takes the dropped slots at the head, so that they can be put into again.
+		 *
+		 * @return if any was taken
+		 */
+		private boolean skipDropped() {
+			boolean skipped = false;
+			long position = head.get();
+			while(true) {
+				int index = (int) position & mask;
+				//Put into slots hold their element before their sequence number is set
+				if(sequences.get(index) != position+1 || elements.get(index) != null) {
+					return skipped;
+				}
+				if(head.compareAndSet(position, position+1)) {
+					sequences.set(index, position+mask+1);
+					droppedSlots.decrementAndGet();
+					skipped = true;
+				}
+				position = head.get();
+			}
+		}
+
+		/**
+		 * @return the slot of the droppable message that is oldest, or expires first, or -1 if there is none
+		 */
+		public int findVictim(boolean earliestExpiry) {
+			long end = tail.get();
+			int victimIndex = -1;
+			long victimExpiryTime = Long.MAX_VALUE;
+			for(long position = head.get(); position < end; ++position) {
+				int index = (int) position & mask;
+				if(sequences.get(index) != position+1) {
+					continue; //Taken or not put yet
+				}
+				T element = elements.get(index);
+				if(element != null && element.isDroppable()) {
+					if(!earliestExpiry) {
+						return index;
+					}
+					if(victimIndex < 0 || element.getExpiryTime() < victimExpiryTime) {
+						victimIndex = index;
+						victimExpiryTime = element.getExpiryTime();
+					}
+				}
+			}
+			return victimIndex;
+		}
 	}
 }
@@ -16,13 +16,13 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 	
 	private final IAllocator allocator;
 	private final IClock clock;
-	private final UuidCache uuidCache;
+	private final UuidCaches uuidCaches;
 	private final Map<UUID, MultipartConstruction> multipartConstructions = new HashMap<UUID, MultipartHandler.MultipartConstruction>();
 	
-	public MultipartHandler(IAllocator allocator, IClock clock, UuidCache uuidCache) {
+	public MultipartHandler(IAllocator allocator, IClock clock, UuidCaches uuidCaches) {
 		this.allocator = allocator;
 		this.clock = clock;
-		this.uuidCache = uuidCache;
+		this.uuidCaches = uuidCaches;
 	}
 
 
@@ -32,21 +32,38 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 		}
 		UUID uuid = multipartMessage.getUuid();
 		long expiryTime = multipartMessage.getExpiryTime();
-		if(!uuidCache.hasUUID(uuid)) {
+		if(!uuidCaches.get(multipartMessage).hasUUID(uuid)) {
 			MultipartConstruction multipartConstruction = multipartConstructions.get(uuid);
 			if(multipartConstruction == null) {
-				multipartConstruction = new MultipartConstruction(expiryTime, multipartMessage.getParts());
+				if(multipartMessage.isFec()) {
+					int repairParts = multipartMessage.getRepairParts();
+					int messageLength = multipartMessage.getMessageLength();
+					if(messageLength <= 0 || multipartMessage.getParts()+repairParts > ReedSolomon.MAX_SHARDS 
+							|| ReedSolomon.getDataShards(getShardSize(messageLength), messageLength) != multipartMessage.getParts()) {
+						return; //Malformed
+					}
+					multipartConstruction = new MultipartConstruction(expiryTime, multipartMessage.isAcced(), multipartMessage.getParts(), new ReedSolomon(repairParts, getShardSize(messageLength), messageLength));
+				} else {
+					multipartConstruction = new MultipartConstruction(expiryTime, multipartMessage.isAcced(), multipartMessage.getParts(), null);
+				}
 				multipartConstructions.put(uuid, multipartConstruction);
 			}
 			multipartConstruction.set(multipartMessage.getPartIndex(), multipartMessage.getPayload());
 			if(multipartConstruction.isReady()) {
 				multipartConstructions.remove(uuid);
 				McnpMessage mcnpMessage = multipartConstruction.assembleAndRelease();
-				outgoingMcnpMessages.add(new OutgoingMcnpMessage(expiryTime, uuid, mcnpMessage));
+				outgoingMcnpMessages.add(new OutgoingMcnpMessage(expiryTime, uuid, mcnpMessage, multipartMessage.isCompressed(), multipartConstruction.acced));
 			}
 		}
 	}
 	
+	/**
+	 * @return the size of the data parts of a message with error correction
+	 */
+	public static int getShardSize(int messageLength) {
+		return Math.min(messageLength, ConnectedProtocolMessage.MAX_FEC_PART_PAYLOAD_SIZE);
+	}
+	
 	public synchronized void prune() {
 		if(released) {
 			return;
@@ -54,7 +71,7 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 		Iterator<Entry<UUID, MultipartConstruction>> iterator = multipartConstructions.entrySet().iterator();
 		while(iterator.hasNext()) {
 			Entry<UUID, MultipartConstruction> entry = iterator.next();
-			if(entry.getValue().expiryTime < clock.getTime() || uuidCache.hasUUID(entry.getKey())) {
+			if(entry.getValue().expiryTime < clock.getTime() || uuidCaches.get(entry.getValue().acced).hasUUID(entry.getKey())) {
 				entry.getValue().release();
 				iterator.remove();
 			}
@@ -74,14 +91,25 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 
 
 
+	/**
+	 * Collects the parts of one message. With error correction it is ready as soon as any <code>parts</code> 
+	 * of the data and repair parts are there, and the missing data parts are rebuilt when assembling.
+	 */
 	private class MultipartConstruction {
 		private final long expiryTime;
+		private final boolean acced;
+		private final int dataParts;
+		private final ReedSolomon errorCorrection; //null without error correction
 		private final IAllocator.IBorrowedByteArray[] partsArray;
+		private int receivedParts = 0;
 		private int totalSize = 0;
 
-		public MultipartConstruction(long expiryTime, int parts) {
+		public MultipartConstruction(long expiryTime, boolean acced, int parts, ReedSolomon errorCorrection) {
 			this.expiryTime = expiryTime;
-			partsArray = new IAllocator.IBorrowedByteArray[parts];
+			this.acced = acced;
+			this.dataParts = parts;
+			this.errorCorrection = errorCorrection;
+			partsArray = new IAllocator.IBorrowedByteArray[parts+(errorCorrection != null ? errorCorrection.getRepairShards() : 0)];
 		}
 		
 		public void release() {
@@ -94,7 +122,7 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 		}
 
 		public void set(int index, ByteArray payload) {
-			if(partsArray[index] == null) {
+			if(index < partsArray.length && partsArray[index] == null && hasExpectedLength(index, payload)) {
 				IBorrowedByteArray chunk = allocator.obtain(payload.getLength());
 				try {
 					payload.copyTo(chunk.getByteArray());
@@ -103,20 +131,31 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 					throw e;
 				}
 				partsArray[index] = chunk;
-				totalSize += payload.getLength();
+				receivedParts++;
+				if(index < dataParts) {
+					totalSize += payload.getLength();
+				}
 			}
 		}
 		
-		public boolean isReady() {
-			for(IBorrowedByteArray part : partsArray) {
-				if(part == null) {
-					return false;
-				}
+		private boolean hasExpectedLength(int index, ByteArray payload) {
+			if(errorCorrection == null) {
+				return true;
 			}
-			return true;
+			int messageLength = errorCorrection.getMessageLength();
+			int shardSize = getShardSize(messageLength);
+			int expectedLength = index < dataParts ? Math.min(shardSize, messageLength-index*shardSize) : shardSize;
+			return payload.getLength() == expectedLength;
+		}
+		
+		public boolean isReady() {
+			return receivedParts >= dataParts;
 		}
 		
 		public McnpMessage assembleAndRelease() {
+			if(errorCorrection != null) {
+				return rebuildAndRelease();
+			}
 			byte[] messageData = new byte[totalSize];
 			ByteArray assembled = new ByteArray(messageData);
 			
@@ -131,5 +170,32 @@ import com.github.systeminvecklare.mcnp.time.IClock;
 			
 			return new McnpMessage(messageData);
 		}
+		
+		private McnpMessage rebuildAndRelease() {
+			try {
+				int messageLength = errorCorrection.getMessageLength();
+				int shardSize = getShardSize(messageLength);
+				byte[] messageData = new byte[messageLength];
+				ByteArray assembled = new ByteArray(messageData);
+				boolean[] receivedData = new boolean[dataParts];
+				for(int i = 0; i < dataParts; ++i) {
+					if(partsArray[i] != null) {
+						ByteArray partData = partsArray[i].getByteArray();
+						ByteArray.copy(partData, 0, assembled, i*shardSize, partData.getLength());
+						receivedData[i] = true;
+					}
+				}
+				ByteArray[] repair = new ByteArray[partsArray.length-dataParts];
+				for(int j = 0; j < repair.length; ++j) {
+					if(partsArray[dataParts+j] != null) {
+						repair[j] = partsArray[dataParts+j].getByteArray();
+					}
+				}
+				errorCorrection.decode(messageData, receivedData, repair);
+				return new McnpMessage(messageData);
+			} finally {
+				release();
+			}
+		}
 	} 
 }
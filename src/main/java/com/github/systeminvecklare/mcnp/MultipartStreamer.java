@@ -0,0 +1,129 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import com.github.systeminvecklare.mcnp.time.IClock;
+
+/**
+ * Hands the parts of multipart messages to a chunk listener in order, as they arrive, instead of assembling the messages.
+ * <p>
+ * A part that is next in order is handed over straight from the received datagram. Parts that arrive early are copied and
+ * kept until the parts before them have come, up to {@value #MAX_BUFFERED_BYTES} bytes for all messages. Parts
+ * beyond that are dropped, as if they were lost. Acced parts are only acced once they have been handed over or kept
+ * (see {@link #supply(ConnectedProtocolMessage, IMcnpChunkListener)}), so the sender resends those that were dropped.
+ * <p>
+ * Repair parts of messages with error correction are not used.
+ */
+/*package-protected*/ class MultipartStreamer implements IReleasable {
+	private static final int MAX_BUFFERED_BYTES = UdpUtil.MAX_UDP_PAYLOAD*16;
+
+	private final IClock clock;
+	private final UuidCaches uuidCaches;
+	private final Map<UUID, Stream> streams = new HashMap<UUID, Stream>();
+	private int bufferedBytes = 0;
+	private boolean released = false;
+
+	public MultipartStreamer(IClock clock, UuidCaches uuidCaches) {
+		this.clock = clock;
+		this.uuidCaches = uuidCaches;
+	}
+
+	/**
+	 * @return if the part has been handed over or kept, or was already, so that it may be acced
+	 */
+	public synchronized boolean supply(ConnectedProtocolMessage multipartMessage, IMcnpChunkListener listener) {
+		if(released) {
+			return false;
+		}
+		UUID uuid = multipartMessage.getUuid();
+		int partIndex = multipartMessage.getPartIndex();
+		if(partIndex >= multipartMessage.getParts()) {
+			return false;
+		}
+		IUuidCache uuidCache = uuidCaches.get(multipartMessage);
+		if(uuidCache.hasUUID(uuid)) {
+			return true;
+		}
+		Stream stream = streams.get(uuid);
+		if(stream == null) {
+			stream = new Stream(multipartMessage.getExpiryTime(), multipartMessage.getParts());
+			streams.put(uuid, stream);
+		}
+		if(partIndex == stream.nextPart) {
+			stream.handOver(uuid, multipartMessage.getPayload(), listener);
+			ByteArray buffered;
+			while((buffered = stream.buffered.remove(stream.nextPart)) != null) {
+				bufferedBytes -= buffered.getLength();
+				stream.handOver(uuid, buffered, listener);
+			}
+			if(stream.nextPart == stream.parts) {
+				streams.remove(uuid);
+				uuidCache.addUuid(stream.expiryTime, uuid);
+			}
+		} else if(partIndex > stream.nextPart && !stream.buffered.containsKey(partIndex)) {
+			ByteArray payload = multipartMessage.getPayload();
+			if(bufferedBytes+payload.getLength() > MAX_BUFFERED_BYTES) {
+				return false;
+			}
+			stream.buffered.put(partIndex, payload.copy());
+			bufferedBytes += payload.getLength();
+		}
+		return true;
+	}
+
+	/**
+	 * Aborts the messages that have expired.
+	 */
+	public synchronized void prune(IMcnpChunkListener listener) {
+		Iterator<Entry<UUID, Stream>> iterator = streams.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Entry<UUID, Stream> entry = iterator.next();
+			Stream stream = entry.getValue();
+			if(stream.expiryTime < clock.getTime()) {
+				iterator.remove();
+				stream.discard();
+				if(listener != null && stream.nextPart > 0) {
+					listener.onAborted(entry.getKey());
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void release() {
+		released = true;
+		streams.clear();
+		bufferedBytes = 0;
+	}
+
+	private class Stream {
+		private final long expiryTime;
+		private final int parts;
+		private final Map<Integer, ByteArray> buffered = new HashMap<Integer, ByteArray>();
+		private int nextPart = 0;
+		private long offset = 0;
+
+		public Stream(long expiryTime, int parts) {
+			this.expiryTime = expiryTime;
+			this.parts = parts;
+		}
+
+		public void handOver(UUID uuid, ByteArray data, IMcnpChunkListener listener) {
+			long chunkOffset = offset;
+			offset += data.getLength();
+			nextPart++;
+			listener.onChunk(uuid, chunkOffset, data, nextPart == parts);
+		}
+
+		public void discard() {
+			for(ByteArray part : buffered.values()) {
+				bufferedBytes -= part.getLength();
+			}
+			buffered.clear();
+		}
+	}
+}
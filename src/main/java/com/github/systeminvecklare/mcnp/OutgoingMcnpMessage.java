@@ -6,10 +6,14 @@ import java.util.UUID;
 	public final long expiryTime;
 	public final UUID protocolMessageUUID;
 	public final McnpMessage mcnpMessage;
+	public final boolean compressed; //If the data still has to be decoded
+	public final boolean acced;
 	
-	public OutgoingMcnpMessage(long expiryTime, UUID protocolMessageUUID, McnpMessage mcnpMessage) {
+	public OutgoingMcnpMessage(long expiryTime, UUID protocolMessageUUID, McnpMessage mcnpMessage, boolean compressed, boolean acced) {
 		this.expiryTime = expiryTime;
 		this.protocolMessageUUID = protocolMessageUUID;
 		this.mcnpMessage = mcnpMessage;
+		this.compressed = compressed;
+		this.acced = acced;
 	}
 }
@@ -0,0 +1,33 @@
+package com.github.systeminvecklare.mcnp;
+
+/**
+ * What a socket does with a received message when its receive queue is full, see {@link McnpSocket#setReceiveQueue(int, OverflowPolicy)}.
+ * Dropped messages are counted by {@link McnpSocket#getDroppedMessages()}.
+ * <p>
+ * Messages that have been acced are never dropped from the queue, since the sender has been told they arrived.
+ * When only such messages are queued, the incoming message is dropped instead, whatever the policy.
+ * <p>
+ * Messages are always dispatched in the order they were queued. A dropped message leaves room behind it until the messages before it
+ * have been taken, so while the dispatcher is stuck on one message, at most about as many messages as fit in the queue
+ * are dropped to make room. After that the incoming message is dropped.
+ */
+public enum OverflowPolicy {
+	/**
+	 * Drops the incoming message. Acced messages are then not acced, so that they are resent. The default.
+	 */
+	DROP_NEWEST,
+	/**
+	 * Drops the oldest queued message that has not been acced. The incoming message is queued last, as if there had been room.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Holds the receive thread until there is room. Nothing is dropped, but nothing else is received meanwhile,
+	 * including for the other sockets of a server socket that share the receive thread.
+	 */
+	BLOCK,
+	/**
+	 * Drops whichever expires first of the incoming message and the queued messages that have not been acced.
+	 * If a queued message is dropped, the incoming message is queued last, as if there had been room.
+	 */
+	DROP_MOST_EXPIRED
+}
@@ -0,0 +1,143 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.systeminvecklare.mcnp.ProtocolMessageSender.IBoundProtocolMessageSender;
+import com.github.systeminvecklare.mcnp.time.IClock;
+
+/**
+ * Token bucket that spaces out outgoing datagrams to a rate.
+ * <p>
+ * The bucket fills at the rate in bytes per second, up to the burst size. A datagram is sent right away if the bucket
+ * has tokens for it and nothing is queued before it. Otherwise it is queued and sent from the timer when enough tokens
+ * have come. Queued datagrams that expire before they are sent are dropped.
+ * Datagrams that arrive when {@value #MAX_QUEUED_DATAGRAMS} are queued are dropped and counted.
+ */
+/*package-protected*/ class Pacer {
+	private static final int MAX_QUEUED_DATAGRAMS = 4096;
+
+	private final IBoundProtocolMessageSender messageSender;
+	private final HashedWheelTimer timer;
+	private final IClock unifiedClock;
+	private final long rate; //Bytes per second
+	private final long burstSize;
+	private final long fillTime; //Nanoseconds to fill an empty bucket
+	private final AtomicLong droppedDatagrams;
+	private final Queue<QueuedDatagram> queue = new ArrayDeque<QueuedDatagram>(); //Guarded by this
+	private long tokens; //Guarded by this
+	private long lastRefill = System.nanoTime(); //Guarded by this
+	private boolean drainScheduled = false; //Guarded by this
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (Pacer.this) {
+				drainScheduled = false;
+				try {
+					sendQueued();
+				} catch (IOException e) {
+					e.printStackTrace();
+					//TODO handle better
+				}
+			}
+		}
+	};
+
+	/**
+	 * @param rate in bytes per second
+	 * @param burstSize how many bytes can be sent back to back, at least one max sized datagram
+	 * @param droppedDatagrams counts datagrams dropped because the queue was full. Shared by the pacers a socket has had.
+	 */
+	public Pacer(IBoundProtocolMessageSender messageSender, HashedWheelTimer timer, IClock unifiedClock, long rate, long burstSize, AtomicLong droppedDatagrams) {
+		if(rate <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		this.messageSender = messageSender;
+		this.timer = timer;
+		this.unifiedClock = unifiedClock;
+		this.rate = rate;
+		this.burstSize = Math.max(burstSize, UdpUtil.MAX_UDP_PAYLOAD);
+		this.fillTime = this.burstSize*1000000000L/rate;
+		this.tokens = this.burstSize;
+		this.droppedDatagrams = droppedDatagrams;
+	}
+
+	/**
+	 * Sends the message now or later. The payload must not change until it has been sent.
+	 */
+	public void send(ConnectedProtocolMessage message) throws IOException {
+		send(message, message.getExpiryTime());
+	}
+
+	/**
+	 * Sends the datagram now or later, unless <code>expiryTime</code> has passed by then.
+	 */
+	public synchronized void send(IProtocolMessage datagram, long expiryTime) throws IOException {
+		if(queue.size() >= MAX_QUEUED_DATAGRAMS) {
+			droppedDatagrams.incrementAndGet();
+			return;
+		}
+		queue.add(new QueuedDatagram(datagram, expiryTime));
+		sendQueued();
+	}
+
+	private void sendQueued() throws IOException {
+		refill();
+		List<IProtocolMessage> sendable = null;
+		QueuedDatagram queued;
+		while((queued = queue.peek()) != null) {
+			if(unifiedClock.getTime() > queued.expiryTime) {
+				queue.poll();
+				continue;
+			}
+			int size = queued.datagram.getSize();
+			if(tokens < size) {
+				if(!drainScheduled) {
+					drainScheduled = true;
+					long waitNanos = (size-tokens)*1000000000L/rate;
+					timer.schedule(drain, Math.max(1, (waitNanos+999999)/1000000));
+				}
+				break;
+			}
+			tokens -= size;
+			queue.poll();
+			if(sendable == null) {
+				sendable = new ArrayList<IProtocolMessage>();
+			}
+			sendable.add(queued.datagram);
+		}
+		if(sendable != null) {
+			messageSender.sendAll(sendable);
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		long elapsed = now-lastRefill;
+		if(elapsed >= fillTime) {
+			tokens = burstSize;
+			lastRefill = now;
+			return;
+		}
+		long newTokens = elapsed*rate/1000000000L;
+		if(newTokens > 0) {
+			tokens = Math.min(burstSize, tokens+newTokens);
+			//Only the time that was turned into tokens is used up
+			lastRefill = tokens == burstSize ? now : lastRefill+newTokens*1000000000L/rate;
+		}
+	}
+
+	private static class QueuedDatagram {
+		private final IProtocolMessage datagram;
+		private final long expiryTime;
+
+		public QueuedDatagram(IProtocolMessage datagram, long expiryTime) {
+			this.datagram = datagram;
+			this.expiryTime = expiryTime;
+		}
+	}
+}
@@ -2,16 +2,32 @@ package com.github.systeminvecklare.mcnp;
 
 import java.net.DatagramPacket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.UUID;
 
 
 /*package-protected*/ class ProtocolMessageMarshaller {
 	
 	public static IProtocolMessage parseMessage(DatagramPacket datagramPacket) {
-		return parseMessage(ByteBuffer.wrap(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()));
+		return parseMessage(datagramPacket, null);
+	}
+	
+	/**
+	 * @param packetMemory if not null, payloads are parsed as views of this memory instead of being copied. 
+	 * The packet must have been created from it.
+	 */
+	public static IProtocolMessage parseMessage(DatagramPacket datagramPacket, ReferenceCountedByteArray packetMemory) {
+		//Slice so that buffer positions are relative to the start of the packet memory
+		return parseMessage(ByteBuffer.wrap(datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength()).slice(), packetMemory);
 	}
 	
 	public static IProtocolMessage parseMessage(ByteBuffer buffer) {
+		return parseMessage(buffer, null);
+	}
+	
+	private static IProtocolMessage parseMessage(ByteBuffer buffer, ReferenceCountedByteArray packetMemory) {
 		byte type = buffer.get();
 		if(type == BaseProtocolMessage.TYPE_ACC) {
 			return parseAccProtocolMessage(buffer);
@@ -24,18 +40,60 @@ import java.util.UUID;
 		} else if(type == BaseProtocolMessage.TYPE_TIMESYNC_PROPOSAL_RESPONSE) {
 			return parseTimesyncProposalResponse(buffer);
 		} else if(type == BaseProtocolMessage.TYPE_CONNECTED) {
-			return parseConnectedProtocolMessage(buffer);
+			return parseConnectedProtocolMessage(buffer, packetMemory);
+		} else if(type == BaseProtocolMessage.TYPE_SACK) {
+			return parseSackProtocolMessage(buffer);
+		} else if(type == BaseProtocolMessage.TYPE_BATCH) {
+			return parseBatchProtocolMessage(buffer, packetMemory);
 		} else {
 			throw new IllegalArgumentException("Unknown type "+type);
 		}
 	}
 	
 	private static AccProtocolMessage parseAccProtocolMessage(ByteBuffer buffer) {
-		long checksum = buffer.getLong();
-		return new AccProtocolMessage(checksum);
+		long mostSignBits = buffer.getLong();
+		long leastSignBits = buffer.getLong();
+		int partIndex = Short.toUnsignedInt(buffer.getShort());
+		int credit = Short.toUnsignedInt(buffer.getShort());
+		return new AccProtocolMessage(new UUID(mostSignBits, leastSignBits), partIndex, credit);
+	}
+	
+	private static SackProtocolMessage parseSackProtocolMessage(ByteBuffer buffer) {
+		long mostSignBits = buffer.getLong();
+		long leastSignBits = buffer.getLong();
+		int parts = Short.toUnsignedInt(buffer.getShort());
+		int credit = Short.toUnsignedInt(buffer.getShort());
+		byte[] bitmap = new byte[SackProtocolMessage.getBitmapSize(parts)];
+		buffer.get(bitmap);
+		return new SackProtocolMessage(new UUID(mostSignBits, leastSignBits), parts, credit, BitSet.valueOf(bitmap));
 	}
 	
-	private static ConnectedProtocolMessage parseConnectedProtocolMessage(ByteBuffer buffer) {
+	private static BatchProtocolMessage parseBatchProtocolMessage(ByteBuffer buffer, ReferenceCountedByteArray packetMemory) {
+		int count = Short.toUnsignedInt(buffer.getShort());
+		List<ConnectedProtocolMessage> messages = new ArrayList<ConnectedProtocolMessage>(count);
+		try {
+			for(int i = 0; i < count; ++i) {
+				int size = Short.toUnsignedInt(buffer.getShort());
+				int end = buffer.position()+size;
+				//Same positions as the packet, so pooled payloads are at the right offsets
+				ByteBuffer entry = buffer.duplicate();
+				entry.limit(end);
+				if(entry.get() != BaseProtocolMessage.TYPE_CONNECTED) {
+					throw new IllegalArgumentException("Only connected messages can be batched");
+				}
+				messages.add(parseConnectedProtocolMessage(entry, packetMemory));
+				buffer.position(end);
+			}
+		} catch(RuntimeException e) {
+			for(ConnectedProtocolMessage message : messages) {
+				message.release();
+			}
+			throw e;
+		}
+		return new BatchProtocolMessage(messages);
+	}
+	
+	private static ConnectedProtocolMessage parseConnectedProtocolMessage(ByteBuffer buffer, ReferenceCountedByteArray packetMemory) {
 		long expiryTime = buffer.getLong();
 		byte flags = buffer.get();
 		long mostSignBits = buffer.getLong();
@@ -47,11 +105,28 @@ import java.util.UUID;
 			int parts = Short.toUnsignedInt(buffer.getShort());
 			multiPartParams = new ConnectedProtocolMessage.MultiPartParams(partIndex, parts);
 		}
+		ConnectedProtocolMessage.FecParams fecParams = null;
+		if((flags & ConnectedProtocolMessage.FLAG_FEC) != 0) {
+			int repairParts = Short.toUnsignedInt(buffer.getShort());
+			int messageLength = buffer.getInt();
+			fecParams = new ConnectedProtocolMessage.FecParams(repairParts, messageLength);
+		}
+		ConnectedProtocolMessage.BulkParams bulkParams = null;
+		if((flags & ConnectedProtocolMessage.FLAG_BULK) != 0) {
+			UUID transferId = new UUID(buffer.getLong(), buffer.getLong());
+			long segmentOffset = buffer.getLong();
+			long transferLength = buffer.getLong();
+			bulkParams = new ConnectedProtocolMessage.BulkParams(transferId, segmentOffset, transferLength);
+		}
 		int payloadSize = buffer.getInt();
-//		//TODO we could send in an allocator to the parseMessage functions so that we could reuse memory. Later.
+		if(packetMemory != null) {
+			ByteArray payload = packetMemory.getByteArray().subArray(buffer.position(), payloadSize);
+			buffer.position(buffer.position()+payloadSize);
+			return new ConnectedProtocolMessage(expiryTime, flags, uuid, multiPartParams, fecParams, bulkParams, payload, packetMemory.retain());
+		}
 		ByteArray payload = new ByteArray(payloadSize);
 		payload.getFrom(buffer);
-		return new ConnectedProtocolMessage(expiryTime, flags, uuid, multiPartParams, payload);
+		return new ConnectedProtocolMessage(expiryTime, flags, uuid, multiPartParams, fecParams, bulkParams, payload, null);
 	}
 
 	private static TimeSyncProposalResponse parseTimesyncProposalResponse(ByteBuffer buffer) {
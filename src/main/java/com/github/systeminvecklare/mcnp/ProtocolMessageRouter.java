@@ -0,0 +1,85 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands each protocol message only to the listeners of its type, and accs and sacks only to the listener of the message they acc,
+ * so that how many listeners there are does not matter for how long a message takes to route.
+ */
+/*package-protected*/ class ProtocolMessageRouter {
+	private static final int TYPES = BaseProtocolMessage.TYPE_BATCH+1;
+
+	private final List<ListenerList<IProtocolMessageListener>> typeListeners = new ArrayList<ListenerList<IProtocolMessageListener>>(TYPES); //By type
+	private final ConcurrentHashMap<UUID, IProtocolMessageListener> accListeners = new ConcurrentHashMap<UUID, IProtocolMessageListener>();
+
+	public ProtocolMessageRouter() {
+		for(int type = 0; type < TYPES; ++type) {
+			typeListeners.add(new ListenerList<IProtocolMessageListener>());
+		}
+	}
+
+	public void route(IProtocolMessage protocolMessage) {
+		byte type = protocolMessage.getType();
+		if(type < 0 || type >= TYPES) {
+			return;
+		}
+		typeListeners.get(type).forEach(protocolMessage);
+		UUID accedUuid = null;
+		if(type == BaseProtocolMessage.TYPE_ACC) {
+			accedUuid = ((AccProtocolMessage) protocolMessage).getUuid();
+		} else if(type == BaseProtocolMessage.TYPE_SACK) {
+			accedUuid = ((SackProtocolMessage) protocolMessage).getUuid();
+		}
+		if(accedUuid != null) {
+			IProtocolMessageListener accListener = accListeners.get(accedUuid);
+			if(accListener != null) {
+				protocolMessage.fireFor(accListener);
+			}
+		}
+	}
+
+	/**
+	 * @param type one of the <code>TYPE_</code> constants of {@link BaseProtocolMessage}
+	 */
+	public void addListener(byte type, IProtocolMessageListener listener) {
+		typeListeners.get(type).addListener(listener);
+	}
+
+	public void removeListener(byte type, IProtocolMessageListener listener) {
+		typeListeners.get(type).removeListener(listener);
+	}
+
+	public void replaceListener(byte type, IProtocolMessageListener oldListener, IProtocolMessageListener newListener) {
+		typeListeners.get(type).replaceListener(oldListener, newListener);
+	}
+
+	/**
+	 * Gives <code>listener</code> the accs and sacks for the acced message <code>uuid</code>. One listener per message.
+	 */
+	public void addAccListener(UUID uuid, IProtocolMessageListener listener) {
+		accListeners.put(uuid, listener);
+	}
+
+	public void removeAccListener(UUID uuid, IProtocolMessageListener listener) {
+		accListeners.remove(uuid, listener);
+	}
+
+	public void clear() {
+		for(ListenerList<IProtocolMessageListener> listeners : typeListeners) {
+			listeners.clear();
+		}
+		accListeners.clear();
+	}
+
+	public boolean isEmpty() {
+		for(ListenerList<IProtocolMessageListener> listeners : typeListeners) {
+			if(!listeners.isEmpty()) {
+				return false;
+			}
+		}
+		return accListeners.isEmpty();
+	}
+}
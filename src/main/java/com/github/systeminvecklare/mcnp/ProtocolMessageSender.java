@@ -2,55 +2,169 @@ package com.github.systeminvecklare.mcnp;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-
-import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /*package-protected*/ class ProtocolMessageSender {
-	private final IAllocator allocator;
-
-	public ProtocolMessageSender(IAllocator allocator) {
-		this.allocator = allocator;
+	//Messages are written into a buffer owned by the sending thread, so sending does not allocate or contend.
+	private static final ThreadLocal<SendBuffer> SEND_BUFFER = new ThreadLocal<SendBuffer>() {
+		@Override
+		protected SendBuffer initialValue() {
+			return new SendBuffer();
+		}
+	};
+	private static final int SEND_BATCH_SIZE = UdpUtil.MAX_UDP_PAYLOAD*2;
+	private static final int MAX_DATAGRAMS_PER_BATCH = 64;
+	private static final ThreadLocal<DatagramBatch> SEND_BATCH = new ThreadLocal<DatagramBatch>() {
+		@Override
+		protected DatagramBatch initialValue() {
+			return new DatagramBatch(SEND_BATCH_SIZE, MAX_DATAGRAMS_PER_BATCH, false);
+		}
+	};
+	private static final ThreadLocal<DatagramBatch> DIRECT_SEND_BATCH = new ThreadLocal<DatagramBatch>() {
+		@Override
+		protected DatagramBatch initialValue() {
+			return new DatagramBatch(SEND_BATCH_SIZE, MAX_DATAGRAMS_PER_BATCH, true);
+		}
+	};
+	private static final ThreadLocal<DirectSendBuffer> DIRECT_SEND_BUFFER = new ThreadLocal<DirectSendBuffer>() {
+		@Override
+		protected DirectSendBuffer initialValue() {
+			return new DirectSendBuffer();
+		}
+	};
+	
+	private final boolean direct;
+	
+	public ProtocolMessageSender() {
+		this(false);
 	}
 	
-	public void send(DatagramSocket sender, McnpAddress receiver, IProtocolMessage protocolMessage) throws IOException {
-		//TODO we could possibly have a 'getSize' on the protocol message. That would make a lot of sense....
-		int size = guessMaxSize(protocolMessage);
-		IBorrowedByteArray borrowedByteArray = allocator.obtain(size);
+	/**
+	 * @param direct if messages should be written into direct memory and sent as buffers. 
+	 * Only pays off for senders backed by a channel, that would otherwise copy heap memory into direct memory.
+	 */
+	public ProtocolMessageSender(boolean direct) {
+		this.direct = direct;
+	}
+	
+	public void send(IDatagramSender sender, McnpAddress receiver, IProtocolMessage protocolMessage) throws IOException {
+		if(direct) {
+			DirectSendBuffer sendBuffer = DIRECT_SEND_BUFFER.get();
+			ByteBuffer buffer = sendBuffer.prepare(protocolMessage.getSize());
+			protocolMessage.writeTo(buffer);
+			buffer.flip();
+			sender.send(buffer, receiver);
+			return;
+		}
+		SendBuffer sendBuffer = SEND_BUFFER.get();
+		ByteBuffer buffer = sendBuffer.prepare(protocolMessage.getSize());
+		protocolMessage.writeTo(buffer);
+		sender.send(sendBuffer.finish(receiver));
+	}
+	
+	/**
+	 * Sends the messages in as few calls to the sender as the batch size allows.
+	 */
+	public void sendAll(IDatagramSender sender, McnpAddress receiver, List<? extends IProtocolMessage> protocolMessages) throws IOException {
+		if(protocolMessages.size() == 1) {
+			send(sender, receiver, protocolMessages.get(0));
+			return;
+		}
+		DatagramBatch batch = (direct ? DIRECT_SEND_BATCH : SEND_BATCH).get();
+		batch.clear();
 		try {
-			DatagramPacket datagramPacket = borrowedByteArray.getByteArray().createDatagramPacket();
-			receiver.stamp(datagramPacket);
-			protocolMessage.writeTo(datagramPacket);
-			sender.send(datagramPacket);
+			for(IProtocolMessage protocolMessage : protocolMessages) {
+				if(!batch.hasRoom(protocolMessage.getSize())) {
+					sender.send(batch);
+					batch.clear();
+				}
+				protocolMessage.writeTo(batch.startDatagram());
+				batch.endDatagram(receiver);
+			}
+			if(!batch.isEmpty()) {
+				sender.send(batch);
+			}
 		} finally {
-			borrowedByteArray.release();
+			batch.clear(); //Let go of the addresses
 		}
 	}
-
-	private int guessMaxSize(IProtocolMessage protocolMessage) {
-		if(protocolMessage instanceof TimeSyncRequest) {
-			return TimeSyncRequest.TIMESYNC_REQUEST_SIZE;
-		} else if(protocolMessage instanceof TimeSyncResponse) {
-			return TimeSyncResponse.TIMESYNC_RESPONSE_SIZE;
-		} else if(protocolMessage instanceof TimeSyncProposalRequest) {
-			return TimeSyncProposalRequest.TIMESYNC_PROPOSAL_REQUEST_SIZE;
-		} else if(protocolMessage instanceof TimeSyncProposalResponse) {
-			return TimeSyncProposalResponse.TIMESYNC_PROPOSAL_RESPONSE_MAXSIZE;
-		} else {
-			return UdpUtil.MAX_UDP_PAYLOAD;
+	
+	/**
+	 * Same as sending a short {@link ConnectedProtocolMessage}, but without creating one.
+	 */
+	public void sendConnected(IDatagramSender sender, McnpAddress receiver, long expiryTime, byte flags, long uuidMostSigBits, long uuidLeastSigBits, ByteArray payload) throws IOException {
+		if(direct) {
+			ByteBuffer buffer = DIRECT_SEND_BUFFER.get().prepare(ConnectedProtocolMessage.CONNECTED_SIZE+payload.getLength());
+			ConnectedProtocolMessage.writeShortTo(buffer, expiryTime, flags, uuidMostSigBits, uuidLeastSigBits, payload);
+			buffer.flip();
+			sender.send(buffer, receiver);
+			return;
 		}
+		SendBuffer sendBuffer = SEND_BUFFER.get();
+		ByteBuffer buffer = sendBuffer.prepare(ConnectedProtocolMessage.CONNECTED_SIZE+payload.getLength());
+		ConnectedProtocolMessage.writeShortTo(buffer, expiryTime, flags, uuidMostSigBits, uuidLeastSigBits, payload);
+		sender.send(sendBuffer.finish(receiver));
 	}
 	
-	public IBoundProtocolMessageSender bind(DatagramSocket sender, McnpAddress receiver) {
+	public IBoundProtocolMessageSender bind(IDatagramSender sender, McnpAddress receiver) {
 		return new IBoundProtocolMessageSender() {
 			@Override
 			public void send(IProtocolMessage protocolMessage) throws IOException {
 				ProtocolMessageSender.this.send(sender, receiver, protocolMessage);
 			}
+			
+			@Override
+			public void sendAll(List<? extends IProtocolMessage> protocolMessages) throws IOException {
+				ProtocolMessageSender.this.sendAll(sender, receiver, protocolMessages);
+			}
+			
+			@Override
+			public void sendConnected(long expiryTime, byte flags, long uuidMostSigBits, long uuidLeastSigBits, ByteArray payload) throws IOException {
+				ProtocolMessageSender.this.sendConnected(sender, receiver, expiryTime, flags, uuidMostSigBits, uuidLeastSigBits, payload);
+			}
 		};
 	}
 	
 	public interface IBoundProtocolMessageSender {
 		void send(IProtocolMessage protocolMessage) throws IOException;
+		void sendAll(List<? extends IProtocolMessage> protocolMessages) throws IOException;
+		void sendConnected(long expiryTime, byte flags, long uuidMostSigBits, long uuidLeastSigBits, ByteArray payload) throws IOException;
+	}
+	
+	/**
+	 * Grows to fit the largest message the thread has sent, so threads that only send short messages keep small buffers.
+	 */
+	private static class SendBuffer {
+		private byte[] data = new byte[0];
+		private ByteBuffer buffer = ByteBuffer.wrap(data);
+		private final DatagramPacket packet = new DatagramPacket(data, 0);
+		
+		public ByteBuffer prepare(int size) {
+			if(size > data.length) {
+				data = new byte[size];
+				buffer = ByteBuffer.wrap(data);
+			}
+			buffer.clear();
+			return buffer;
+		}
+		
+		public DatagramPacket finish(McnpAddress receiver) {
+			packet.setData(data, 0, buffer.position());
+			receiver.stamp(packet);
+			return packet;
+		}
+	}
+	
+	private static class DirectSendBuffer {
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+		
+		public ByteBuffer prepare(int size) {
+			if(size > buffer.capacity()) {
+				buffer = ByteBuffer.allocateDirect(size);
+			}
+			buffer.clear();
+			return buffer;
+		}
 	}
 }
@@ -0,0 +1,231 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8) with a Cauchy matrix.
+ * <p>
+ * A message is split into data shards of <code>shardSize</code> bytes, the last one zero padded, and
+ * repair shards are computed from them. Any <code>dataShards</code> of all the shards are enough to rebuild the missing data shards.
+ * Data and repair shards together can be at most {@value #MAX_SHARDS}.
+ */
+/*package-protected*/ class ReedSolomon {
+	public static final int MAX_SHARDS = 256;
+
+	private static final byte[] EXP = new byte[512];
+	private static final int[] LOG = new int[256];
+	private static final byte[] MUL = new byte[256*256]; //MUL[a << 8 | b] is a*b
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; ++i) {
+			EXP[i] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256) {
+				x ^= 0x11D;
+			}
+		}
+		for(int i = 255; i < EXP.length; ++i) {
+			EXP[i] = EXP[i-255];
+		}
+		for(int a = 1; a < 256; ++a) {
+			for(int b = 1; b < 256; ++b) {
+				MUL[a << 8 | b] = EXP[LOG[a]+LOG[b]];
+			}
+		}
+	}
+
+	private final int dataShards;
+	private final int repairShards;
+	private final int shardSize;
+	private final int messageLength;
+
+	/**
+	 * @param messageLength that is split into shards of <code>shardSize</code> bytes
+	 */
+	public ReedSolomon(int repairShards, int shardSize, int messageLength) {
+		this.dataShards = getDataShards(shardSize, messageLength);
+		this.repairShards = repairShards;
+		this.shardSize = shardSize;
+		this.messageLength = messageLength;
+		if(dataShards+repairShards > MAX_SHARDS) {
+			throw new IllegalArgumentException("At most "+MAX_SHARDS+" shards");
+		}
+	}
+
+	public static int getDataShards(int shardSize, int messageLength) {
+		return (messageLength+shardSize-1)/shardSize;
+	}
+
+	public int getDataShards() {
+		return dataShards;
+	}
+
+	public int getRepairShards() {
+		return repairShards;
+	}
+
+	public int getMessageLength() {
+		return messageLength;
+	}
+
+	/**
+	 * @return the repair shards of the message, each <code>shardSize</code> long
+	 */
+	public byte[][] encode(ByteArray message) {
+		if(message.getLength() != messageLength) {
+			throw new IllegalArgumentException("Expected "+messageLength+" bytes");
+		}
+		byte[][] repair = new byte[repairShards][shardSize];
+		ByteBuffer buffer = message.createByteBuffer();
+		byte[] data;
+		int dataOffset;
+		if(buffer.hasArray()) {
+			data = buffer.array();
+			dataOffset = buffer.arrayOffset()+buffer.position();
+		} else {
+			data = new byte[messageLength];
+			buffer.get(data);
+			dataOffset = 0;
+		}
+		for(int j = 0; j < repairShards; ++j) {
+			for(int i = 0; i < dataShards; ++i) {
+				mulAdd(coefficient(j, i), data, dataOffset+i*shardSize, getShardLength(i), repair[j], 0);
+			}
+		}
+		return repair;
+	}
+
+	/**
+	 * Rebuilds the missing data shards in place.
+	 *
+	 * @param message with the data shards that were received at their places
+	 * @param receivedData which data shards are in <code>message</code>
+	 * @param repair the repair shards, <code>null</code> for those that were not received
+	 * @throws IllegalArgumentException if fewer than <code>dataShards</code> shards were received
+	 */
+	public void decode(byte[] message, boolean[] receivedData, ByteArray[] repair) {
+		int missing = 0;
+		for(int i = 0; i < dataShards; ++i) {
+			if(!receivedData[i]) {
+				missing++;
+			}
+		}
+		if(missing == 0) {
+			return;
+		}
+		int[] missingIndices = new int[missing];
+		int[] repairIndices = new int[missing];
+		for(int i = 0, m = 0; i < dataShards; ++i) {
+			if(!receivedData[i]) {
+				missingIndices[m++] = i;
+			}
+		}
+		for(int j = 0, r = 0; r < missing; ++j) {
+			if(j == repairShards) {
+				throw new IllegalArgumentException("Not enough shards to rebuild the message");
+			}
+			if(repair[j] != null) {
+				repairIndices[r++] = j;
+			}
+		}
+
+		//What the repair shards hold of the missing data shards, once the received data shards are taken out
+		byte[][] syndromes = new byte[missing][];
+		for(int r = 0; r < missing; ++r) {
+			int j = repairIndices[r];
+			byte[] syndrome = new byte[shardSize];
+			repair[j].createByteBuffer().get(syndrome);
+			for(int i = 0; i < dataShards; ++i) {
+				if(receivedData[i]) {
+					mulAdd(coefficient(j, i), message, i*shardSize, getShardLength(i), syndrome, 0);
+				}
+			}
+			syndromes[r] = syndrome;
+		}
+
+		int[][] inverse = invert(missingIndices, repairIndices);
+		byte[] shard = new byte[shardSize];
+		for(int m = 0; m < missing; ++m) {
+			Arrays.fill(shard, (byte) 0);
+			for(int r = 0; r < missing; ++r) {
+				mulAdd(inverse[m][r], syndromes[r], 0, shardSize, shard, 0);
+			}
+			int i = missingIndices[m];
+			System.arraycopy(shard, 0, message, i*shardSize, getShardLength(i));
+		}
+	}
+
+	private int getShardLength(int dataShard) {
+		return Math.min(shardSize, messageLength-dataShard*shardSize);
+	}
+
+	private int coefficient(int repairShard, int dataShard) {
+		//1/(x+y) with x = dataShards+repairShard and y = dataShard, which never are equal
+		return inverse((dataShards+repairShard) ^ dataShard);
+	}
+
+	/**
+	 * Inverts the square part of the encoding matrix that maps the missing data shards to the used repair shards.
+	 */
+	private int[][] invert(int[] missingIndices, int[] repairIndices) {
+		int n = missingIndices.length;
+		int[][] matrix = new int[n][2*n];
+		for(int r = 0; r < n; ++r) {
+			for(int m = 0; m < n; ++m) {
+				matrix[r][m] = coefficient(repairIndices[r], missingIndices[m]);
+			}
+			matrix[r][n+r] = 1;
+		}
+		for(int column = 0; column < n; ++column) {
+			int pivot = column;
+			while(matrix[pivot][column] == 0) {
+				pivot++; //Cauchy matrices are invertible, so there is always a pivot
+			}
+			int[] swap = matrix[pivot];
+			matrix[pivot] = matrix[column];
+			matrix[column] = swap;
+			int scale = inverse(matrix[column][column]);
+			for(int c = 0; c < 2*n; ++c) {
+				matrix[column][c] = mul(matrix[column][c], scale);
+			}
+			for(int row = 0; row < n; ++row) {
+				int factor = matrix[row][column];
+				if(row != column && factor != 0) {
+					for(int c = 0; c < 2*n; ++c) {
+						matrix[row][c] ^= mul(factor, matrix[column][c]);
+					}
+				}
+			}
+		}
+		//Row m of the inverse gives missing shard m from the syndromes
+		int[][] inverse = new int[n][n];
+		for(int m = 0; m < n; ++m) {
+			System.arraycopy(matrix[m], n, inverse[m], 0, n);
+		}
+		return inverse;
+	}
+
+	/**
+	 * target[...] += factor*source[...], over <code>length</code> bytes
+	 */
+	private static void mulAdd(int factor, byte[] source, int sourceOffset, int length, byte[] target, int targetOffset) {
+		if(factor == 0) {
+			return;
+		}
+		int row = factor << 8;
+		for(int k = 0; k < length; ++k) {
+			target[targetOffset+k] ^= MUL[row | (source[sourceOffset+k] & 0xFF)];
+		}
+	}
+
+	private static int mul(int a, int b) {
+		return MUL[a << 8 | b] & 0xFF;
+	}
+
+	private static int inverse(int a) {
+		return EXP[255-LOG[a]] & 0xFF;
+	}
+}
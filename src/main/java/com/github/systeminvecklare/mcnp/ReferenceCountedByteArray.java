@@ -0,0 +1,44 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.systeminvecklare.mcnp.IAllocator.IBorrowedByteArray;
+
+/**
+ * Borrowed memory that is given back to its allocator when the last reference is released.
+ * Starts out with one reference, owned by whoever obtained it.
+ */
+/*package-protected*/ final class ReferenceCountedByteArray implements IReleasable {
+	private final IBorrowedByteArray borrowedByteArray;
+	private final AtomicInteger references = new AtomicInteger(1);
+	
+	public ReferenceCountedByteArray(IBorrowedByteArray borrowedByteArray) {
+		this.borrowedByteArray = borrowedByteArray;
+	}
+	
+	public ByteArray getByteArray() {
+		return borrowedByteArray.getByteArray();
+	}
+	
+	public ReferenceCountedByteArray retain() {
+		while(true) {
+			int current = references.get();
+			if(current <= 0) {
+				throw new IllegalStateException("Memory already released");
+			}
+			if(references.compareAndSet(current, current+1)) {
+				return this;
+			}
+		}
+	}
+	
+	@Override
+	public void release() {
+		int remaining = references.decrementAndGet();
+		if(remaining == 0) {
+			borrowedByteArray.release();
+		} else if(remaining < 0) {
+			throw new IllegalStateException("Memory released too many times");
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.github.systeminvecklare.mcnp;
+
+/**
+ * Round-trip time estimate and retransmit timeout of a socket, computed as in RFC 6298.
+ * <p>
+ * Times are kept in microseconds. Samples come from time sync probes when connecting and from accs of parts 
+ * that were only sent once (Karn's algorithm), since the acc of a resent part can not be matched to one send.
+ * Until the first sample, the retransmit timeout is the initial one.
+ */
+/*package-protected*/ class RttEstimator {
+	private static final long CLOCK_GRANULARITY = 1000; //Tick of the retransmit timer
+	private static final int K = 4;
+	
+	private final long initialRetransmitTimeout;
+	private final long minRetransmitTimeout;
+	private final long maxRetransmitTimeout;
+	private long smoothedRtt = 0; //Guarded by this
+	private long rttVariation = 0; //Guarded by this
+	private long latestRtt = 0; //Guarded by this
+	private long minRtt = Long.MAX_VALUE; //Guarded by this
+	private long retransmitTimeout; //Guarded by this
+	private long samples = 0; //Guarded by this
+	private long retransmissions = 0; //Guarded by this
+	
+	/**
+	 * @param initialRetransmitTimeout in ms
+	 * @param minRetransmitTimeout in ms
+	 * @param maxRetransmitTimeout in ms, also caps backed off timeouts
+	 */
+	public RttEstimator(long initialRetransmitTimeout, long minRetransmitTimeout, long maxRetransmitTimeout) {
+		this.initialRetransmitTimeout = initialRetransmitTimeout*1000;
+		this.minRetransmitTimeout = minRetransmitTimeout*1000;
+		this.maxRetransmitTimeout = maxRetransmitTimeout*1000;
+		this.retransmitTimeout = this.initialRetransmitTimeout;
+	}
+	
+	/**
+	 * @param rtt in microseconds
+	 */
+	public synchronized void onSample(long rtt) {
+		rtt = Math.max(0, rtt);
+		if(samples == 0) {
+			smoothedRtt = rtt;
+			rttVariation = rtt/2;
+		} else {
+			rttVariation = (3*rttVariation+Math.abs(smoothedRtt-rtt))/4;
+			smoothedRtt = (7*smoothedRtt+rtt)/8;
+		}
+		latestRtt = rtt;
+		minRtt = Math.min(minRtt, rtt);
+		samples++;
+		long timeout = smoothedRtt+Math.max(CLOCK_GRANULARITY, K*rttVariation);
+		retransmitTimeout = Math.min(maxRetransmitTimeout, Math.max(minRetransmitTimeout, timeout));
+	}
+	
+	public synchronized void onRetransmissions(int datagrams) {
+		retransmissions += datagrams;
+	}
+	
+	/**
+	 * @param backoffs how many times in a row the retransmit timer has expired without progress
+	 * @return the retransmit timeout in ms, doubled for every backoff
+	 */
+	public synchronized long getRetransmitTimeout(int backoffs) {
+		long timeout = retransmitTimeout << Math.min(backoffs, 16);
+		return (Math.min(timeout, maxRetransmitTimeout)+999)/1000;
+	}
+	
+	/**
+	 * @return the smoothed round-trip time in ms, rounded up, or the initial retransmit timeout before any sample
+	 */
+	public synchronized long getRoundTripTime() {
+		return samples == 0 ? (initialRetransmitTimeout+999)/1000 : Math.max(1, (smoothedRtt+999)/1000);
+	}
+	
+	public synchronized RttStats getStats() {
+		return new RttStats(smoothedRtt, rttVariation, latestRtt, samples == 0 ? 0 : minRtt, retransmitTimeout, samples, retransmissions);
+	}
+}
@@ -0,0 +1,64 @@
+package com.github.systeminvecklare.mcnp;
+
+/**
+ * Round-trip time statistics of a socket, see {@link McnpSocket#getRttStats()}. Times are in ms.
+ * Before any sample has been taken, the times are 0 and the retransmit timeout is the initial one.
+ */
+public final class RttStats {
+	private final long smoothedRtt;
+	private final long rttVariation;
+	private final long latestRtt;
+	private final long minRtt;
+	private final long retransmitTimeout;
+	private final long samples;
+	private final long retransmissions;
+	
+	/*package-protected*/ RttStats(long smoothedRtt, long rttVariation, long latestRtt, long minRtt, long retransmitTimeout, long samples, long retransmissions) {
+		this.smoothedRtt = smoothedRtt;
+		this.rttVariation = rttVariation;
+		this.latestRtt = latestRtt;
+		this.minRtt = minRtt;
+		this.retransmitTimeout = retransmitTimeout;
+		this.samples = samples;
+		this.retransmissions = retransmissions;
+	}
+	
+	public double getSmoothedRtt() {
+		return smoothedRtt/1000.0;
+	}
+	
+	public double getRttVariation() {
+		return rttVariation/1000.0;
+	}
+	
+	public double getLatestRtt() {
+		return latestRtt/1000.0;
+	}
+	
+	public double getMinRtt() {
+		return minRtt/1000.0;
+	}
+	
+	/**
+	 * @return the retransmit timeout for acced messages, before backoff
+	 */
+	public double getRetransmitTimeout() {
+		return retransmitTimeout/1000.0;
+	}
+	
+	public long getSamples() {
+		return samples;
+	}
+	
+	/**
+	 * @return how many datagrams of acced messages have been resent
+	 */
+	public long getRetransmissions() {
+		return retransmissions;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("srtt=%.3fms rttvar=%.3fms min=%.3fms rto=%.3fms samples=%d retransmissions=%d", getSmoothedRtt(), getRttVariation(), getMinRtt(), getRetransmitTimeout(), samples, retransmissions);
+	}
+}
@@ -0,0 +1,66 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.UUID;
+
+/**
+ * Selective acc of a multipart message. Carries a bitmap of all parts the receiver has got so far,
+ * so the sender only has to resend the gaps, and the credit of the receiver like {@link AccProtocolMessage}.
+ */
+/*package-protected*/ class SackProtocolMessage extends BaseProtocolMessage {
+	public static final int SACK_HEADER_SIZE = BASE_SIZE+Long.BYTES*2+Short.BYTES*2;
+	
+	private final UUID uuid;
+	private final short parts;
+	private final short credit;
+	private final BitSet receivedParts;
+
+	public SackProtocolMessage(UUID uuid, int parts, int credit, BitSet receivedParts) {
+		super(BaseProtocolMessage.TYPE_SACK);
+		this.uuid = uuid;
+		this.parts = (short) parts;
+		this.credit = AccProtocolMessage.toCredit(credit);
+		this.receivedParts = receivedParts;
+	}
+	
+	public UUID getUuid() {
+		return uuid;
+	}
+	
+	public int getParts() {
+		return Short.toUnsignedInt(parts);
+	}
+	
+	public int getCredit() {
+		return Short.toUnsignedInt(credit);
+	}
+	
+	public BitSet getReceivedParts() {
+		return receivedParts;
+	}
+	
+	@Override
+	public int getSize() {
+		return SACK_HEADER_SIZE+getBitmapSize(getParts());
+	}
+
+	@Override
+	public void writeTo(ByteBuffer buffer) {
+		super.writeTo(buffer);
+		buffer.putLong(uuid.getMostSignificantBits());
+		buffer.putLong(uuid.getLeastSignificantBits());
+		buffer.putShort(parts);
+		buffer.putShort(credit);
+		byte[] bitmap = receivedParts.toByteArray(); //Trailing zero bytes are left out
+		int bitmapSize = getBitmapSize(getParts());
+		buffer.put(bitmap, 0, Math.min(bitmap.length, bitmapSize));
+		for(int i = bitmap.length; i < bitmapSize; ++i) {
+			buffer.put((byte) 0);
+		}
+	}
+	
+	/*package-protected*/ static int getBitmapSize(int parts) {
+		return (parts+7)/8;
+	}
+}
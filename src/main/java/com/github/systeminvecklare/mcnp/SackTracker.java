@@ -0,0 +1,169 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+import com.github.systeminvecklare.mcnp.ProtocolMessageSender.IBoundProtocolMessageSender;
+import com.github.systeminvecklare.mcnp.time.IClock;
+
+/**
+ * Keeps track of which parts of acced multipart messages have been received, and decides when to answer with a {@link SackProtocolMessage}.
+ * <p>
+ * A sack is sent right away when the message is complete, when its last part arrives, when a part arrives right after a gap
+ * (a part was probably lost) or fills one, and when a part arrives again (the sender is resending, so it has not seen the latest sack).
+ * Sacks caused by resent parts are rate limited, since the sender resends all gaps at once. While there are gaps,
+ * every {@value #SACK_EVERY_PARTS_WITH_GAPS} new parts are sacked, so that the sender finds its losses quickly.
+ * <p>
+ * Other parts are sacked once no more parts have arrived for a while, which is once per window the sender sends.
+ * The wait is a quarter of a round trip, but at most {@value #MAX_SACK_DELAY} ms, which is below the smallest retransmit timeout.
+ * While parts keep arriving, a sack is also sent for every half window of new parts, so that the sender does not
+ * stall on a full window. Half a window is guessed from how many parts arrived between pauses, and is at most {@value #SACK_EVERY_PARTS}.
+ */
+/*package-protected*/ class SackTracker {
+	private static final int SACK_EVERY_PARTS = 16;
+	private static final int SACK_EVERY_PARTS_WITH_GAPS = 2;
+	private static final long MAX_SACK_DELAY = 3;
+	private static final long MIN_RESEND_SACK_INTERVAL = 2;
+	private static final long PRUNE_INTERVAL = 1000;
+
+	private final Map<UUID, ReceivedParts> messages = new HashMap<UUID, ReceivedParts>();
+	private final IClock unifiedClock;
+	private final HashedWheelTimer timer;
+	private final RttEstimator rttEstimator;
+	private final IBoundProtocolMessageSender sackSender;
+	private long nextPrune = Long.MIN_VALUE;
+	private int flightParts = 0; //New parts since parts last stopped arriving
+	private int lastFlightParts = 2*SACK_EVERY_PARTS;
+
+	/**
+	 * @param sackSender sends the delayed sacks, from the timer thread
+	 */
+	public SackTracker(IClock unifiedClock, HashedWheelTimer timer, RttEstimator rttEstimator, IBoundProtocolMessageSender sackSender) {
+		this.unifiedClock = unifiedClock;
+		this.timer = timer;
+		this.rttEstimator = rttEstimator;
+		this.sackSender = sackSender;
+	}
+
+	/**
+	 * @param credit to put in the sack, see {@link AccProtocolMessage#toCredit(int)}
+	 * @return the sack to answer the part with, or <code>null</code> if it should not be answered yet
+	 */
+	public synchronized SackProtocolMessage onPart(ConnectedProtocolMessage part, int credit, long now) {
+		if(now >= nextPrune) {
+			prune(now);
+			nextPrune = now+PRUNE_INTERVAL;
+		}
+		final UUID uuid = part.getUuid();
+		final ReceivedParts receivedParts;
+		if(messages.containsKey(uuid)) {
+			receivedParts = messages.get(uuid);
+		} else {
+			receivedParts = new ReceivedParts(part.getExpiryTime(), part.getParts(), now-MIN_RESEND_SACK_INTERVAL);
+			messages.put(uuid, receivedParts);
+		}
+		receivedParts.credit = credit;
+		receivedParts.lastPartTime = now;
+		int partIndex = part.getPartIndex();
+		boolean resent = receivedParts.received.get(partIndex);
+		boolean afterGap = !resent && partIndex > 0 && !receivedParts.received.get(partIndex-1);
+		boolean fillsGap = !resent && receivedParts.received.nextSetBit(partIndex+1) >= 0;
+		if(!resent) {
+			receivedParts.received.set(partIndex);
+			receivedParts.unsackedParts++;
+			flightParts++;
+		}
+
+		boolean complete = !resent && receivedParts.received.cardinality() == receivedParts.parts;
+		boolean last = !resent && partIndex == receivedParts.parts-1;
+		int halfWindow = Math.max(lastFlightParts, flightParts)/2;
+		boolean gaps = receivedParts.received.nextClearBit(0) < receivedParts.received.length();
+		boolean progress = receivedParts.unsackedParts >= (gaps ? SACK_EVERY_PARTS_WITH_GAPS : Math.max(1, Math.min(SACK_EVERY_PARTS, halfWindow)));
+		if(complete || last || progress || afterGap || fillsGap || (resent && now-receivedParts.lastSackTime >= MIN_RESEND_SACK_INTERVAL)) {
+			return createSack(uuid, receivedParts, now);
+		}
+		if(receivedParts.unsackedParts > 0 && !receivedParts.delayedSackScheduled) {
+			receivedParts.delayedSackScheduled = true;
+			scheduleDelayedSack(uuid, receivedParts, getSackDelay());
+		}
+		return null;
+	}
+
+	private long getSackDelay() {
+		return Math.max(1, Math.min(MAX_SACK_DELAY, rttEstimator.getRoundTripTime()/4));
+	}
+
+	private void scheduleDelayedSack(final UUID uuid, final ReceivedParts receivedParts, long delay) {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				sendDelayedSack(uuid, receivedParts);
+			}
+		}, delay);
+	}
+
+	private void sendDelayedSack(UUID uuid, ReceivedParts receivedParts) {
+		SackProtocolMessage sack;
+		synchronized (this) {
+			if(receivedParts.unsackedParts == 0 || messages.get(uuid) != receivedParts) {
+				receivedParts.delayedSackScheduled = false;
+				return;
+			}
+			long now = unifiedClock.getTime();
+			long sackDelay = getSackDelay();
+			long quiet = now-receivedParts.lastPartTime;
+			if(quiet < sackDelay) {
+				//Parts are still arriving
+				scheduleDelayedSack(uuid, receivedParts, sackDelay-quiet);
+				return;
+			}
+			receivedParts.delayedSackScheduled = false;
+			lastFlightParts = flightParts;
+			flightParts = 0;
+			sack = createSack(uuid, receivedParts, now);
+		}
+		try {
+			sackSender.send(sack);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//TODO handle better
+		}
+	}
+
+	private SackProtocolMessage createSack(UUID uuid, ReceivedParts receivedParts, long now) {
+		receivedParts.lastSackTime = now;
+		receivedParts.unsackedParts = 0;
+		return new SackProtocolMessage(uuid, receivedParts.parts, receivedParts.credit, (BitSet) receivedParts.received.clone());
+	}
+
+	private void prune(long now) {
+		Iterator<ReceivedParts> iterator = messages.values().iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next().expiryTime < now) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private static class ReceivedParts {
+		private final long expiryTime;
+		private final int parts;
+		private final BitSet received;
+		private long lastSackTime;
+		private int unsackedParts = 0;
+		private int credit = 0;
+		private long lastPartTime;
+		private boolean delayedSackScheduled = false;
+
+		public ReceivedParts(long expiryTime, int parts, long lastSackTime) {
+			this.expiryTime = expiryTime;
+			this.parts = parts;
+			this.received = new BitSet(parts);
+			this.lastSackTime = lastSackTime;
+		}
+	}
+}
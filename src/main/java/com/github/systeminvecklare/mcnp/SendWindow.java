@@ -0,0 +1,160 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Limits how many datagrams of acced messages a socket has in flight, counted from first send until acced.
+ * <p>
+ * The limit is the smaller of the congestion window and the credit last advertised by the receiver, which is how many
+ * more datagrams its message queue can take. The congestion window is AIMD: it grows by one per acced datagram in slow start,
+ * by one per window after that, and is halved on loss (at most once per round trip). A retransmit timeout sets it back to
+ * {@value #LOSS_WINDOW}.
+ * <p>
+ * One datagram is always let through when nothing is in flight, so that a receiver that has advertised no credit
+ * gets a chance to advertise new credit.
+ * <p>
+ * Senders that could not send everything wait for the window to open and are then called, one at a time and outside of any lock,
+ * on the thread that processed the acc.
+ */
+/*package-protected*/ class SendWindow {
+	private static final int INITIAL_WINDOW = 10;
+	private static final int LOSS_WINDOW = 2;
+	private static final int MAX_WINDOW = 1 << 16;
+
+	private int congestionWindow = INITIAL_WINDOW; //Guarded by this
+	private int slowStartThreshold = MAX_WINDOW; //Guarded by this
+	private int windowGrowth = 0; //Acced datagrams towards the next increase in congestion avoidance. Guarded by this
+	private int credit = MAX_WINDOW; //Unlimited until the receiver has advertised. Guarded by this
+	private int inFlight = 0; //Guarded by this
+	private long recoveryEndTime = Long.MIN_VALUE; //Guarded by this
+	private final Set<IWindowListener> waiting = new LinkedHashSet<IWindowListener>(); //Guarded by this
+
+	/**
+	 * Takes room for one new datagram.
+	 *
+	 * @return if the datagram may be sent
+	 */
+	public synchronized boolean tryAcquire() {
+		if(hasRoom()) {
+			inFlight++;
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean hasRoom() {
+		return inFlight == 0 || inFlight < Math.min(congestionWindow, credit);
+	}
+
+	/**
+	 * Makes <code>listener</code> be called once when there is room again.
+	 * 
+	 * @return false, without waiting, if there already is room
+	 */
+	public synchronized boolean awaitRoom(IWindowListener listener) {
+		if(hasRoom()) {
+			return false;
+		}
+		waiting.add(listener);
+		return true;
+	}
+
+	public synchronized void stopAwaitingRoom(IWindowListener listener) {
+		waiting.remove(listener);
+	}
+
+	/**
+	 * @param datagrams that were newly acced
+	 * @param credit advertised by the receiver in the acc
+	 */
+	public void onAcced(int datagrams, int credit) {
+		synchronized (this) {
+			inFlight = Math.max(0, inFlight-datagrams);
+			this.credit = credit;
+			if(congestionWindow < slowStartThreshold) {
+				congestionWindow = Math.min(MAX_WINDOW, congestionWindow+datagrams);
+			} else {
+				windowGrowth += datagrams;
+				if(windowGrowth >= congestionWindow) {
+					windowGrowth -= congestionWindow;
+					congestionWindow = Math.min(MAX_WINDOW, congestionWindow+1);
+				}
+			}
+		}
+		notifyWaiting();
+	}
+
+	/**
+	 * Datagrams that will not be acced, because the message expired or was given up.
+	 */
+	public void release(int datagrams) {
+		if(datagrams > 0) {
+			synchronized (this) {
+				inFlight = Math.max(0, inFlight-datagrams);
+			}
+			notifyWaiting();
+		}
+	}
+
+	/**
+	 * Lost datagrams were found from gaps in the accs.
+	 *
+	 * @param roundTripTime in ms, losses within this time of the last decrease are seen as the same loss event
+	 */
+	public synchronized void onLoss(long now, long roundTripTime) {
+		if(now >= recoveryEndTime) {
+			slowStartThreshold = Math.max(LOSS_WINDOW, congestionWindow/2);
+			congestionWindow = slowStartThreshold;
+			windowGrowth = 0;
+			recoveryEndTime = now+roundTripTime;
+		}
+	}
+
+	/**
+	 * The retransmit timer expired without accs.
+	 */
+	public synchronized void onTimeout(long now, long roundTripTime) {
+		if(now >= recoveryEndTime) {
+			slowStartThreshold = Math.max(LOSS_WINDOW, congestionWindow/2);
+			recoveryEndTime = now+roundTripTime;
+		}
+		congestionWindow = LOSS_WINDOW;
+		windowGrowth = 0;
+	}
+
+	public synchronized int getCongestionWindow() {
+		return congestionWindow;
+	}
+
+	public synchronized int getCredit() {
+		return credit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Hands the room to waiting senders in the order they started waiting, until it is used up.
+	 */
+	private void notifyWaiting() {
+		while(true) {
+			IWindowListener listener;
+			synchronized (this) {
+				if(waiting.isEmpty() || !hasRoom()) {
+					return;
+				}
+				Iterator<IWindowListener> iterator = waiting.iterator();
+				listener = iterator.next();
+				iterator.remove();
+			}
+			listener.onRoom();
+		}
+	}
+
+	public interface IWindowListener {
+		void onRoom();
+	}
+}
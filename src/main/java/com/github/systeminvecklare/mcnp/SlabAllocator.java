@@ -0,0 +1,411 @@
+package com.github.systeminvecklare.mcnp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator that hands out blocks from size classes (powers of two from {@value #MIN_BLOCK_SIZE} bytes, then half a slab 
+ * instead of the power of two just above it so that two fit in a slab, and {@link UdpUtil#MAX_UDP_PAYLOAD}).
+ * <p>
+ * The arena is divided into slabs of {@value #SLAB_SIZE} bytes, so that an arena of whole datagrams is used up exactly.
+ * A slab is given to a size class when the class runs out of free blocks, and is given back to the arena as soon as all of its blocks
+ * have been released, so that memory moves to the sizes that are in use. Each size class keeps its slabs that have free blocks in a list,
+ * so obtain and release are O(1).
+ * <p>
+ * Each thread also keeps a small magazine of blocks it has released, which it obtains from first without locking,
+ * and gives back to the slabs when the arena can not serve it otherwise.
+ * Only blocks that were obtained by the same thread go into its magazine. Blocks released by other threads, like messages
+ * received on one thread and dispatched on another, go straight back to their slab.
+ * <p>
+ * The arena is either a heap array or, for large arenas that should not grow the heap, direct memory.
+ * Off-heap blocks can be copied and sent, but not used as {@link java.net.DatagramPacket} buffers.
+ * <p>
+ * When the arena can not serve a request, memory is taken from the heap instead. Such arena misses are counted,
+ * see {@link #getArenaMisses()}.
+ */
+/*package-protected*/ class SlabAllocator implements IAllocator, IReleasable {
+	/*package-protected*/ static final int MIN_BLOCK_SIZE = 16;
+	private static final int MIN_BLOCK_SIZE_BITS = 4;
+	private static final int SLAB_SIZE = UdpUtil.MAX_UDP_PAYLOAD;
+	private static final int MAGAZINE_SIZE = 4;
+	private static final int[] BLOCK_SIZES = createBlockSizes();
+
+	private final byte[] arena; //null when off-heap
+	private final ByteBuffer offHeapArena;
+	private final Slab[] slabs;
+	private final List<Slab> emptySlabs = new ArrayList<Slab>(); //Guarded by this
+	private final SizeClass[] sizeClasses = new SizeClass[BLOCK_SIZES.length];
+	private final List<Magazine> magazines = new ArrayList<Magazine>(); //Guarded by this
+	private int magazineSweepLimit = 16; //Guarded by this
+	private final ThreadLocal<Magazine> localMagazine = new ThreadLocal<Magazine>() {
+		@Override
+		protected Magazine initialValue() {
+			return registerMagazine();
+		}
+	};
+	private final AtomicLong arenaMisses = new AtomicLong(0);
+	private volatile boolean released = false;
+
+	public SlabAllocator(int size) {
+		this(size, false);
+	}
+
+	public SlabAllocator(int size, boolean offHeap) {
+		this.arena = offHeap ? null : new byte[size];
+		this.offHeapArena = offHeap ? ByteBuffer.allocateDirect(size) : null;
+		this.slabs = new Slab[(size+SLAB_SIZE-1)/SLAB_SIZE];
+		for(int index = 0; index < slabs.length; ++index) {
+			int start = index*SLAB_SIZE;
+			slabs[index] = new Slab(start, Math.min(SLAB_SIZE, size-start));
+		}
+		//Last in, first out, so the start of the arena is used first
+		for(int index = slabs.length-1; index >= 0; --index) {
+			emptySlabs.add(slabs[index]);
+		}
+		for(int sizeClass = 0; sizeClass < sizeClasses.length; ++sizeClass) {
+			sizeClasses[sizeClass] = new SizeClass(sizeClass);
+		}
+	}
+
+	@Override
+	public IBorrowedByteArray obtain(int size) {
+		if(size < 0) {
+			throw new IllegalArgumentException("Size must be positive");
+		}
+		if(size == 0) {
+			return new Block(new ByteArray(0), -1, 0);
+		}
+		int sizeClass = getSizeClass(size);
+		if(sizeClass >= 0 && !released) {
+			Magazine magazine = localMagazine.get();
+			int offset = magazine.pop(sizeClass);
+			if(offset < 0) {
+				offset = sizeClasses[sizeClass].obtain();
+			}
+			if(offset < 0 && magazine.drainTo(sizeClasses)) {
+				//Blocks of other sizes kept by this thread may have kept their slabs from being given back
+				offset = sizeClasses[sizeClass].obtain();
+			}
+			if(offset < 0 && sweepMagazines()) {
+				//Blocks were stuck in the magazines of threads that are gone
+				offset = sizeClasses[sizeClass].obtain();
+			}
+			if(offset >= 0) {
+				ByteArray byteArray = arena != null ? new ByteArray(arena, offset, size) : new ByteArray(offHeapArena, offset, size);
+				return new Block(byteArray, sizeClass, offset);
+			}
+		}
+		//Create new unrecoverable ByteArray
+		arenaMisses.incrementAndGet();
+		return new Block(new ByteArray(size), -1, 0);
+	}
+
+	private void free(Block block) {
+		if(block.sizeClass < 0 || released) {
+			return;
+		}
+		if(block.owner != Thread.currentThread() || !localMagazine.get().push(block.sizeClass, block.offset)) {
+			sizeClasses[block.sizeClass].free(block.offset);
+		}
+	}
+
+	/**
+	 * @return an empty slab that blocks of <code>blockSize</code> fit in, or <code>null</code> if the arena is used up
+	 */
+	private synchronized Slab takeEmptySlab(int blockSize) {
+		for(int i = emptySlabs.size()-1; i >= 0; --i) {
+			if(emptySlabs.get(i).length >= blockSize) {
+				Slab slab = emptySlabs.remove(i);
+				slab.assign(blockSize);
+				return slab;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void returnEmptySlab(Slab slab) {
+		slab.reset();
+		emptySlabs.add(slab);
+	}
+
+	private Magazine registerMagazine() {
+		boolean sweep;
+		synchronized (this) {
+			sweep = magazines.size() >= magazineSweepLimit;
+		}
+		if(sweep) {
+			sweepMagazines();
+		}
+		Magazine magazine = new Magazine(Thread.currentThread());
+		synchronized (this) {
+			if(sweep) {
+				magazineSweepLimit = Math.max(16, magazines.size()*2);
+			}
+			magazines.add(magazine);
+		}
+		return magazine;
+	}
+
+	/**
+	 * Moves the blocks of magazines whose thread has terminated back to their slabs.
+	 * Seeing that a thread has terminated makes its writes to the magazine visible here.
+	 *
+	 * @return if any magazine was swept
+	 */
+	private boolean sweepMagazines() {
+		List<Magazine> dead = new ArrayList<Magazine>();
+		synchronized (this) {
+			Iterator<Magazine> iterator = magazines.iterator();
+			while(iterator.hasNext()) {
+				Magazine magazine = iterator.next();
+				if(!magazine.owner.isAlive()) {
+					dead.add(magazine);
+					iterator.remove();
+				}
+			}
+		}
+		//Outside of the lock, since size classes take it when they give back slabs
+		for(Magazine magazine : dead) {
+			magazine.drainTo(sizeClasses);
+		}
+		return !dead.isEmpty();
+	}
+
+	/**
+	 * @return how many times memory had to be taken from the heap because the arena could not serve the request
+	 */
+	public long getArenaMisses() {
+		return arenaMisses.get();
+	}
+
+	@Override
+	public void release() {
+		released = true;
+	}
+
+	private static int getSizeClass(int size) {
+		if(size > UdpUtil.MAX_UDP_PAYLOAD) {
+			return -1;
+		}
+		//Index of the smallest power of two that fits, counted from MIN_BLOCK_SIZE
+		int sizeClass = Math.min(Math.max(0, (Integer.SIZE-Integer.numberOfLeadingZeros(size-1))-MIN_BLOCK_SIZE_BITS), BLOCK_SIZES.length-1);
+		if(size > BLOCK_SIZES[sizeClass]) {
+			sizeClass++; //Just above half a slab
+		}
+		return sizeClass;
+	}
+
+	private static int[] createBlockSizes() {
+		List<Integer> blockSizes = new ArrayList<Integer>();
+		for(int blockSize = MIN_BLOCK_SIZE; blockSize < SLAB_SIZE/2; blockSize *= 2) {
+			blockSizes.add(blockSize);
+		}
+		blockSizes.add(SLAB_SIZE/2);
+		blockSizes.add(UdpUtil.MAX_UDP_PAYLOAD);
+		int[] result = new int[blockSizes.size()];
+		for(int i = 0; i < result.length; ++i) {
+			result[i] = blockSizes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * The slabs of one block size that have free blocks, in a linked list so that a slab can leave it from anywhere.
+	 * Lock order is size class before allocator.
+	 */
+	private class SizeClass {
+		private final int blockSize;
+		private Slab partialSlabs = null; //Guarded by this
+
+		public SizeClass(int sizeClass) {
+			this.blockSize = BLOCK_SIZES[sizeClass];
+		}
+
+		/**
+		 * @return the offset of a free block, or -1 if the arena is used up
+		 */
+		public synchronized int obtain() {
+			Slab slab = partialSlabs;
+			if(slab == null) {
+				slab = takeEmptySlab(blockSize);
+				if(slab == null) {
+					return -1;
+				}
+				link(slab);
+			}
+			int offset = slab.take();
+			if(slab.isFull()) {
+				unlink(slab);
+			}
+			return offset;
+		}
+
+		public synchronized void free(int offset) {
+			Slab slab = slabs[offset/SLAB_SIZE];
+			boolean wasFull = slab.isFull();
+			slab.put(offset);
+			if(slab.isEmpty()) {
+				if(!wasFull) {
+					unlink(slab);
+				}
+				returnEmptySlab(slab);
+			} else if(wasFull) {
+				link(slab);
+			}
+		}
+
+		private void link(Slab slab) {
+			slab.previous = null;
+			slab.next = partialSlabs;
+			if(partialSlabs != null) {
+				partialSlabs.previous = slab;
+			}
+			partialSlabs = slab;
+		}
+
+		private void unlink(Slab slab) {
+			if(slab.previous != null) {
+				slab.previous.next = slab.next;
+			} else {
+				partialSlabs = slab.next;
+			}
+			if(slab.next != null) {
+				slab.next.previous = slab.previous;
+			}
+			slab.previous = null;
+			slab.next = null;
+		}
+	}
+
+	/**
+	 * Blocks are carved from the start of the slab as needed, and released blocks are kept on a stack.
+	 * Guarded by the size class it belongs to, or by the allocator while it is empty.
+	 */
+	private static class Slab {
+		private static final int[] NO_BLOCKS = new int[0];
+
+		private final int start;
+		private final int length;
+		private int blockSize = 0;
+		private int capacity = 0;
+		private int carved = 0;
+		private int used = 0;
+		private int[] released = NO_BLOCKS;
+		private int releasedCount = 0;
+		private Slab previous = null;
+		private Slab next = null;
+
+		public Slab(int start, int length) {
+			this.start = start;
+			this.length = length;
+		}
+
+		public void assign(int blockSize) {
+			this.blockSize = blockSize;
+			this.capacity = length/blockSize;
+		}
+
+		public int take() {
+			used++;
+			if(releasedCount > 0) {
+				return released[--releasedCount];
+			}
+			return start+(carved++)*blockSize;
+		}
+
+		public void put(int offset) {
+			used--;
+			if(releasedCount == released.length) {
+				int[] grown = new int[Math.min(capacity, Math.max(4, released.length*2))];
+				System.arraycopy(released, 0, grown, 0, releasedCount);
+				released = grown;
+			}
+			released[releasedCount++] = offset;
+		}
+
+		public boolean isFull() {
+			return used == capacity;
+		}
+
+		public boolean isEmpty() {
+			return used == 0;
+		}
+
+		public void reset() {
+			carved = 0;
+			releasedCount = 0;
+		}
+	}
+
+	/**
+	 * Blocks released by one thread. Only touched by that thread, until it has terminated.
+	 */
+	private static class Magazine {
+		private final Thread owner;
+		private final int[][] offsets = new int[BLOCK_SIZES.length][MAGAZINE_SIZE];
+		private final int[] sizes = new int[BLOCK_SIZES.length];
+
+		public Magazine(Thread owner) {
+			this.owner = owner;
+		}
+
+		public boolean push(int sizeClass, int offset) {
+			if(sizes[sizeClass] == MAGAZINE_SIZE) {
+				return false;
+			}
+			offsets[sizeClass][sizes[sizeClass]++] = offset;
+			return true;
+		}
+
+		public int pop(int sizeClass) {
+			return sizes[sizeClass] == 0 ? -1 : offsets[sizeClass][--sizes[sizeClass]];
+		}
+
+		/**
+		 * @return if any block was drained
+		 */
+		public boolean drainTo(SizeClass[] sizeClasses) {
+			boolean drained = false;
+			for(int sizeClass = 0; sizeClass < sizes.length; ++sizeClass) {
+				while(sizes[sizeClass] > 0) {
+					sizeClasses[sizeClass].free(offsets[sizeClass][--sizes[sizeClass]]);
+					drained = true;
+				}
+			}
+			return drained;
+		}
+	}
+
+	private class Block implements IBorrowedByteArray {
+		private final ByteArray byteArray;
+		private final int sizeClass;
+		private final int offset;
+		private final Thread owner = Thread.currentThread(); //That obtained it
+		private boolean released = false;
+
+		public Block(ByteArray byteArray, int sizeClass, int offset) {
+			this.byteArray = byteArray;
+			this.sizeClass = sizeClass;
+			this.offset = offset;
+		}
+
+		@Override
+		public void release() {
+			synchronized (this) {
+				if(released) {
+					throw new IllegalStateException("Memory already released");
+				}
+				released = true;
+			}
+			free(this);
+		}
+
+		@Override
+		public ByteArray getByteArray() {
+			return byteArray;
+		}
+	}
+}
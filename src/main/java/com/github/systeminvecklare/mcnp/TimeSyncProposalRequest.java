@@ -23,7 +23,12 @@ import java.util.UUID;
 	}
 	
 	@Override
-	protected void writeTo(ByteBuffer buffer) {
+	public int getSize() {
+		return TIMESYNC_PROPOSAL_REQUEST_SIZE;
+	}
+	
+	@Override
+	public void writeTo(ByteBuffer buffer) {
 		super.writeTo(buffer);
 		buffer.putLong(uuid.getMostSignificantBits());
 		buffer.putLong(uuid.getLeastSignificantBits());
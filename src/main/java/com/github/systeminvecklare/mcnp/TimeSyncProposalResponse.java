@@ -27,7 +27,16 @@ import java.util.UUID;
 	}
 	
 	@Override
-	protected void writeTo(ByteBuffer buffer) {
+	public int getSize() {
+		int size = BaseProtocolMessage.BASE_SIZE+Long.BYTES*2+1;
+		if(status == STATUS_PROPOSAL_DECLINED) {
+			size += 1+Character.BYTES*declineMessageMax30Chars.length();
+		}
+		return size;
+	}
+	
+	@Override
+	public void writeTo(ByteBuffer buffer) {
 		super.writeTo(buffer);
 		buffer.putLong(uuid.getMostSignificantBits());
 		buffer.putLong(uuid.getLeastSignificantBits());
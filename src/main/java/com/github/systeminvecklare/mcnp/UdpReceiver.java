@@ -2,16 +2,23 @@ package com.github.systeminvecklare.mcnp;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 
 /*package-protected*/ class UdpReceiver implements IReleasable {
+	private static final int RECEIVE_BUFFER_SIZE = UdpUtil.MAX_UDP_PAYLOAD*2; //Room for small datagrams after a max sized one
+	private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+	
 	private final AutoLooper thread;
-	private volatile DatagramPacket receivePacket;
+	private final IDatagramSource datagramSource;
+	private volatile DatagramBatch receiveBatch;
 	private volatile boolean released = false;
 	private final ListenerList<IDatagramSubscriber> eventBroadcaster = new ListenerList<>();
 	
-	public UdpReceiver(DatagramSocket datagramSocket, DatagramPacket datagramPacket) {
-		this.receivePacket = datagramPacket;
+	/**
+	 * @param receivePool if not null, every datagram is moved to its own memory from this pool 
+	 * and subscribers may retain it. Otherwise subscribers only get a packet that is reused for all datagrams.
+	 */
+	public UdpReceiver(IDatagramSource datagramSource, IAllocator receivePool) {
+		this.datagramSource = datagramSource;
 		AutoLooper.IRunCondition loopCondition = new AutoLooper.IRunCondition() {
 			@Override
 			public boolean isMet() {
@@ -19,22 +26,42 @@ import java.net.DatagramSocket;
 			}
 		};
 		this.thread = new AutoLooper(new Runnable() {
+			private final DatagramPacket packet = new DatagramPacket(new byte[0], 0); //Reused when there is no receive pool
+			
 			@Override
 			public void run() {
-				DatagramPacket receivePacketSnapshot = receivePacket;
-				if(receivePacketSnapshot == null) {
+				DatagramBatch batch = receiveBatch;
+				if(batch == null) {
 					throw new RuntimeException("Unexpected!");
 				}
-				receivePacketSnapshot.setLength(UdpUtil.MAX_UDP_PAYLOAD); //Reset length
+				batch.clear();
 				try {
-					datagramSocket.receive(receivePacketSnapshot);
+					datagramSource.receive(batch);
 				} catch (IOException e) {
 					if(!released) {
 						throw new RuntimeException(e);
 					}
+					return;
+				}
+				for(int i = 0; i < batch.size() && !released; ++i) {
+					McnpAddress sender = batch.getAddress(i);
+					if(receivePool != null) {
+						//Move the datagram to its own memory, so that subscribers may retain it
+						ReferenceCountedByteArray packetMemory = new ReferenceCountedByteArray(receivePool.obtain(batch.getLength(i)));
+						try {
+							new ByteArray(batch.array(), batch.getOffset(i), batch.getLength(i)).copyTo(packetMemory.getByteArray());
+							DatagramPacket memoryPacket = packetMemory.getByteArray().createDatagramPacket();
+							sender.stamp(memoryPacket);
+							eventBroadcaster.forEach(new IDatagramSubscriber.OnDatagramPacketEvent(sender, memoryPacket, packetMemory));
+						} finally {
+							packetMemory.release();
+						}
+					} else {
+						packet.setData(batch.array(), batch.getOffset(i), batch.getLength(i));
+						sender.stamp(packet);
+						eventBroadcaster.forEach(new IDatagramSubscriber.OnDatagramPacketEvent(sender, packet, null));
+					}
 				}
-				
-				eventBroadcaster.forEach(new IDatagramSubscriber.OnDatagramPacketEvent(McnpAddress.from(receivePacketSnapshot) ,receivePacketSnapshot));
 			}
 		}, loopCondition) {
 			@Override
@@ -42,14 +69,14 @@ import java.net.DatagramSocket;
 				if(released) {
 					return;
 				}
-				if(receivePacket == null) {
-					receivePacket = new DatagramPacket(new byte[UdpUtil.MAX_UDP_PAYLOAD], UdpUtil.MAX_UDP_PAYLOAD);
+				if(receiveBatch == null) {
+					receiveBatch = new DatagramBatch(RECEIVE_BUFFER_SIZE, MAX_DATAGRAMS_PER_WAKEUP, false);
 				}
 			}
 			
 			@Override
 			protected void onAfterStopped() {
-				receivePacket = null;
+				receiveBatch = null;
 			}
 		};
 	}
@@ -80,5 +107,6 @@ import java.net.DatagramSocket;
 		released = true;
 		eventBroadcaster.clear();
 		thread.release();
+		datagramSource.wakeup();
 	}
 }
@@ -1,6 +1,7 @@
 package com.github.systeminvecklare.mcnp;
 
 import java.net.DatagramPacket;
+import java.util.UUID;
 
 /**
  * Listens to Udp messages and converts them to Mcnp protocol messages
@@ -8,7 +9,7 @@ import java.net.DatagramPacket;
  *
  */
 /*package-protected*/ class UdpToProtocolMessageConverter implements IDatagramSubscriber, IProtocolMessageEventSource {
-	private final ListenerList<IProtocolMessageListener> listeners = new ListenerList<>();
+	private final ProtocolMessageRouter router = new ProtocolMessageRouter();
 	private final UdpReceiver udpReceiver;
 	private volatile boolean attached = false;
 	
@@ -17,10 +18,14 @@ import java.net.DatagramPacket;
 	}
 	
 	@Override
-	public void onDatagramPacket(McnpAddress sender, DatagramPacket packet) {
-		if(!listeners.isEmpty()) {
-			IProtocolMessage protocolMessage = ProtocolMessageMarshaller.parseMessage(packet);
-			listeners.forEach(protocolMessage);
+	public void onDatagramPacket(McnpAddress sender, DatagramPacket packet, ReferenceCountedByteArray packetMemory) {
+		if(!router.isEmpty()) {
+			IProtocolMessage protocolMessage = ProtocolMessageMarshaller.parseMessage(packet, packetMemory);
+			try {
+				router.route(protocolMessage);
+			} finally {
+				protocolMessage.release(); //Listeners retain what they keep
+			}
 		}
 	}
 	
@@ -31,30 +36,50 @@ import java.net.DatagramPacket;
 		}
 	}
 	
+	private void detachIfEmpty() {
+		if(router.isEmpty()) {
+			udpReceiver.removeListener(this);
+			attached = false;
+		}
+	}
+	
 	@Override
-	public void addListener(IProtocolMessageListener listener) {
+	public void addListener(byte type, IProtocolMessageListener listener) {
 		synchronized (UdpToProtocolMessageConverter.this) {
-			listeners.addListener(listener);
+			router.addListener(type, listener);
 			ensureAttached();
 		}
 	}
 	
 	@Override
-	public void removeListener(IProtocolMessageListener listener) {
+	public void removeListener(byte type, IProtocolMessageListener listener) {
 		synchronized (UdpToProtocolMessageConverter.this) {
-			listeners.removeListener(listener);
-			if(listeners.isEmpty()) {
-				udpReceiver.removeListener(this);
-				attached = false;
-			}
+			router.removeListener(type, listener);
+			detachIfEmpty();
+		}
+	}
+	
+	@Override
+	public void replaceListener(byte type, IProtocolMessageListener oldListener, IProtocolMessageListener newListener) {
+		synchronized (UdpToProtocolMessageConverter.this) {
+			router.replaceListener(type, oldListener, newListener);
+			ensureAttached();
 		}
 	}
 	
 	@Override
-	public void replaceListener(IProtocolMessageListener oldListener, IProtocolMessageListener newListener) {
+	public void addAccListener(UUID uuid, IProtocolMessageListener listener) {
 		synchronized (UdpToProtocolMessageConverter.this) {
-			listeners.replaceListener(oldListener, newListener);
+			router.addAccListener(uuid, listener);
 			ensureAttached();
 		}
 	}
+	
+	@Override
+	public void removeAccListener(UUID uuid, IProtocolMessageListener listener) {
+		synchronized (UdpToProtocolMessageConverter.this) {
+			router.removeAccListener(uuid, listener);
+			detachIfEmpty();
+		}
+	}
 }
@@ -1,53 +1,259 @@
 package com.github.systeminvecklare.mcnp;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
 
 import com.github.systeminvecklare.mcnp.time.IClock;
 
 /**
  * Utility class to keep track of received messaged
+ * <p>
+ * The two longs of each UUID are kept in an open addressing table, so nothing is boxed. Lookups are optimistic
+ * reads that only take the lock if a write got in the way. Expiry times are kept in a wheel of {@value #WHEEL_SIZE} buckets of
+ * {@value #TICK_DURATION} ms, like in {@link HashedWheelTimer}, so pruning only looks at the buckets that have expired.
  * @author Mattias Selin
  *
  */
-/*package-protected*/ class UuidCache implements IReleasable {
+/*package-protected*/ class UuidCache implements IUuidCache {
+	private static final long TICK_DURATION = 16;
+	private static final int WHEEL_SIZE = 256;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final long EMPTY = Long.MIN_VALUE;
+
 	private volatile boolean released = false;
 	private final IClock clock;
-	private final Map<UUID, Long> cache = new HashMap<UUID, Long>();
+	private final StampedLock lock = new StampedLock();
+	private Table table = new Table(INITIAL_CAPACITY); //Written with the write lock
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE]; //Guarded by the write lock
+	private volatile long prunedTick = Long.MIN_VALUE; //Ticks up to this have been pruned. Written with the write lock
 
 	public UuidCache(IClock clock) {
 		this.clock = clock;
+		for(int i = 0; i < WHEEL_SIZE; ++i) {
+			wheel[i] = new Bucket();
+		}
 	}
 
-	public synchronized void addUuid(long expiryTime, UUID uuid) {
+	@Override
+	public void addUuid(long expiryTime, UUID uuid) {
 		if(released) {
 			return;
 		}
 		if(clock.getTime() <= expiryTime) {
-			cache.put(uuid, expiryTime);
+			long stamp = lock.writeLock();
+			try {
+				if(released) {
+					return;
+				}
+				if(table.put(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), expiryTime)) {
+					table = table.resize(table.capacity()*2);
+				}
+				wheel[position(tick(expiryTime))].add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+			} finally {
+				lock.unlockWrite(stamp);
+			}
 		}
 	}
-	
-	public synchronized boolean hasUUID(UUID uuid) {
-		return cache.containsKey(uuid);
+
+	@Override
+	public boolean hasUUID(UUID uuid) {
+		long mostSigBits = uuid.getMostSignificantBits();
+		long leastSigBits = uuid.getLeastSignificantBits();
+		long stamp = lock.tryOptimisticRead();
+		if(stamp != 0) {
+			//What is read may be torn by a concurrent write, but is then thrown away by validate
+			boolean found = table.indexOf(mostSigBits, leastSigBits) >= 0;
+			if(lock.validate(stamp)) {
+				return found;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return table.indexOf(mostSigBits, leastSigBits) >= 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
-	
-	public synchronized void prune() {
-		Iterator<Entry<UUID, Long>> iterator = cache.entrySet().iterator();
-		while(iterator.hasNext()) {
-			Entry<UUID, Long> entry = iterator.next();
-			if(clock.getTime() > entry.getValue().longValue()) {
-				iterator.remove();
+
+	/**
+	 * Removes the UUIDs that have expired. Only looks at the buckets of the ticks that have passed since the last prune.
+	 */
+	@Override
+	public void prune() {
+		long now = clock.getTime();
+		long lastExpiredTick = tick(now)-1; //Everything in it has expiryTime < now
+		if(lastExpiredTick <= prunedTick) {
+			return;
+		}
+		long stamp = lock.writeLock();
+		try {
+			if(prunedTick == Long.MIN_VALUE || lastExpiredTick-prunedTick > WHEEL_SIZE) {
+				prunedTick = lastExpiredTick-WHEEL_SIZE; //Visit every bucket once
+			}
+			for(long tick = prunedTick+1; tick <= lastExpiredTick; ++tick) {
+				wheel[position(tick)].prune(table, position(tick), now);
+			}
+			prunedTick = Math.max(prunedTick, lastExpiredTick);
+			if(table.size*8 < table.capacity() && table.capacity() > INITIAL_CAPACITY) {
+				table = table.resize(table.capacity()/2);
 			}
+		} finally {
+			lock.unlockWrite(stamp);
 		}
 	}
+
+	private static long tick(long time) {
+		return Math.floorDiv(time, TICK_DURATION);
+	}
 	
+	private static int position(long tick) {
+		return (int) Math.floorMod(tick, (long) WHEEL_SIZE);
+	}
+
 	@Override
-	public synchronized void release() {
-		released = true;
-		cache.clear();
+	public void release() {
+		long stamp = lock.writeLock();
+		try {
+			released = true;
+			table = new Table(INITIAL_CAPACITY);
+			for(Bucket bucket : wheel) {
+				bucket.size = 0;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Linear probing, with entries shifted back on removal instead of leaving tombstones. At most half full.
+	 */
+	private static class Table {
+		private final long[] mostSigBits;
+		private final long[] leastSigBits;
+		private final long[] expiryTimes; //EMPTY for free slots
+		private final int mask;
+		private int size = 0;
+
+		public Table(int capacity) {
+			this.mostSigBits = new long[capacity];
+			this.leastSigBits = new long[capacity];
+			this.expiryTimes = new long[capacity];
+			this.mask = capacity-1;
+			Arrays.fill(expiryTimes, EMPTY);
+		}
+
+		public int indexOf(long most, long least) {
+			int index = slot(most, least);
+			for(int probes = 0; probes <= mask; ++probes) {
+				if(expiryTimes[index] == EMPTY) {
+					return -1;
+				}
+				if(mostSigBits[index] == most && leastSigBits[index] == least) {
+					return index;
+				}
+				index = (index+1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * @return if the table should grow
+		 */
+		public boolean put(long most, long least, long expiryTime) {
+			int index = slot(most, least);
+			while(expiryTimes[index] != EMPTY) {
+				if(mostSigBits[index] == most && leastSigBits[index] == least) {
+					expiryTimes[index] = expiryTime;
+					return false;
+				}
+				index = (index+1) & mask;
+			}
+			mostSigBits[index] = most;
+			leastSigBits[index] = least;
+			expiryTimes[index] = expiryTime;
+			size++;
+			return size*2 > mask+1;
+		}
+
+		public void remove(int index) {
+			//Moves later entries of the probe sequence back into the hole
+			int hole = index;
+			int next = (hole+1) & mask;
+			while(expiryTimes[next] != EMPTY) {
+				int home = slot(mostSigBits[next], leastSigBits[next]);
+				if(((next-home) & mask) >= ((next-hole) & mask)) {
+					mostSigBits[hole] = mostSigBits[next];
+					leastSigBits[hole] = leastSigBits[next];
+					expiryTimes[hole] = expiryTimes[next];
+					hole = next;
+				}
+				next = (next+1) & mask;
+			}
+			expiryTimes[hole] = EMPTY;
+			size--;
+		}
+
+		public int capacity() {
+			return mask+1;
+		}
+
+		public Table resize(int capacity) {
+			Table resized = new Table(capacity);
+			for(int i = 0; i <= mask; ++i) {
+				if(expiryTimes[i] != EMPTY) {
+					resized.put(mostSigBits[i], leastSigBits[i], expiryTimes[i]);
+				}
+			}
+			return resized;
+		}
+
+		private int slot(long most, long least) {
+			long hash = (most ^ least)*0x9E3779B97F4A7C15L;
+			return (int) (hash >>> 32) & mask;
+		}
+	}
+
+	/**
+	 * The UUIDs that expire on the ticks of one wheel position. Those that expire on a later turn of the wheel are kept.
+	 */
+	private static class Bucket {
+		private long[] uuids = new long[8]; //Most and least significant bits after each other
+		private int size = 0; //In longs
+
+		public void add(long most, long least) {
+			if(size == uuids.length) {
+				uuids = Arrays.copyOf(uuids, size*2);
+			}
+			uuids[size++] = most;
+			uuids[size++] = least;
+		}
+
+		/**
+		 * @param position of this bucket in the wheel
+		 */
+		public void prune(Table table, int position, long now) {
+			int kept = 0;
+			for(int i = 0; i < size; i += 2) {
+				long most = uuids[i];
+				long least = uuids[i+1];
+				int index = table.indexOf(most, least);
+				if(index < 0) {
+					continue; //Already removed
+				}
+				long expiryTime = table.expiryTimes[index];
+				if(expiryTime < now) {
+					table.remove(index);
+				} else if(position(tick(expiryTime)) == position) {
+					//Expires on a later turn of the wheel. Otherwise it was added again, to the bucket it is now in.
+					uuids[kept++] = most;
+					uuids[kept++] = least;
+				}
+			}
+			size = kept;
+			if(size*4 < uuids.length && uuids.length > 8) {
+				uuids = Arrays.copyOf(uuids, uuids.length/2);
+			}
+		}
 	}
 }
@@ -0,0 +1,35 @@
+package com.github.systeminvecklare.mcnp;
+
+/**
+ * The caches of completed messages of a socket, one for acced and one for unacced messages.
+ * <p>
+ * Acced messages are always remembered exactly: a message taken for a copy is still acced, so the sender would
+ * take it for delivered. Unacced messages may be remembered in a {@link BloomUuidCache}, which drops some of them.
+ */
+/*package-protected*/ class UuidCaches {
+	private final IUuidCache accedUuidCache;
+	private final IUuidCache unaccedUuidCache;
+
+	/**
+	 * @param unaccedUuidCache may be the same as <code>accedUuidCache</code>
+	 */
+	public UuidCaches(IUuidCache accedUuidCache, IUuidCache unaccedUuidCache) {
+		this.accedUuidCache = accedUuidCache;
+		this.unaccedUuidCache = unaccedUuidCache;
+	}
+
+	public IUuidCache get(boolean acced) {
+		return acced ? accedUuidCache : unaccedUuidCache;
+	}
+
+	public IUuidCache get(ConnectedProtocolMessage message) {
+		return get(message.isAcced());
+	}
+
+	public void prune() {
+		accedUuidCache.prune();
+		if(unaccedUuidCache != accedUuidCache) {
+			unaccedUuidCache.prune();
+		}
+	}
+}
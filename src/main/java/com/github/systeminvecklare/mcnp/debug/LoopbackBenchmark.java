@@ -0,0 +1,99 @@
+package com.github.systeminvecklare.mcnp.debug;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.systeminvecklare.mcnp.IMcnpMessageListener;
+import com.github.systeminvecklare.mcnp.McnpAddress;
+import com.github.systeminvecklare.mcnp.McnpMessage;
+import com.github.systeminvecklare.mcnp.McnpServerSocket;
+import com.github.systeminvecklare.mcnp.McnpSocket;
+import com.github.systeminvecklare.mcnp.time.SystemClock;
+
+/**
+ * Measures server receive throughput over loopback for 1 to N shards.
+ * <p>
+ * Usage: LoopbackBenchmark [maxShards] [clients] [seconds] [payloadSize]
+ */
+public class LoopbackBenchmark {
+	public static void main(String[] args) throws Exception {
+		int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int payloadSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+		
+		try {
+			for(int shards = 1; shards <= maxShards; shards *= 2) {
+				long received = run(shards, clients, seconds, payloadSize);
+				System.out.println(shards+" shard(s): "+(received/seconds)+" msgs/s");
+			}
+		} finally {
+			System.exit(0);
+		}
+	}
+
+	private static long run(int shards, int clientCount, int seconds, int payloadSize) throws IOException, TimeoutException, InterruptedException {
+		final AtomicLong received = new AtomicLong(0);
+		final IMcnpMessageListener counter = new IMcnpMessageListener() {
+			@Override
+			public void onMessage(McnpMessage mcnpMessage) {
+				received.incrementAndGet();
+			}
+		};
+		try(McnpServerSocket serverSocket = new McnpServerSocket(new SystemClock(), 0, McnpServerSocket.ReceiveEngine.SELECTOR, shards)) {
+			McnpAddress serverAddress = new McnpAddress(InetAddress.getLoopbackAddress(), serverSocket.getPort());
+			List<McnpSocket> clients = new ArrayList<McnpSocket>();
+			try {
+				for(int i = 0; i < clientCount; ++i) {
+					Thread acceptThread = new Thread() {
+						@Override
+						public void run() {
+							try {
+								serverSocket.accept(counter);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+					};
+					acceptThread.start();
+					McnpSocket client = new McnpSocket();
+					client.connect(serverAddress);
+					clients.add(client);
+					acceptThread.join();
+				}
+				
+				final long end = System.currentTimeMillis()+seconds*1000L;
+				List<Thread> senders = new ArrayList<Thread>();
+				for(McnpSocket client : clients) {
+					Thread sender = new Thread() {
+						@Override
+						public void run() {
+							McnpMessage message = new McnpMessage(new byte[payloadSize]);
+							try {
+								while(System.currentTimeMillis() < end) {
+									client.send(message);
+								}
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					};
+					senders.add(sender);
+					sender.start();
+				}
+				for(Thread sender : senders) {
+					sender.join();
+				}
+				return received.get();
+			} finally {
+				for(McnpSocket client : clients) {
+					client.close();
+				}
+			}
+		}
+	}
+}
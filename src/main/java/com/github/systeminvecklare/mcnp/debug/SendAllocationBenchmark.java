@@ -0,0 +1,81 @@
+package com.github.systeminvecklare.mcnp.debug;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.TimeoutException;
+
+import com.github.systeminvecklare.mcnp.IMcnpMessageListener;
+import com.github.systeminvecklare.mcnp.McnpAddress;
+import com.github.systeminvecklare.mcnp.McnpMessage;
+import com.github.systeminvecklare.mcnp.McnpServerSocket;
+import com.github.systeminvecklare.mcnp.McnpSocket;
+import com.github.systeminvecklare.mcnp.time.SystemClock;
+
+/**
+ * Measures heap allocated by the sending thread per {@link McnpSocket#send(McnpMessage)},
+ * both from a client socket and from a socket accepted by the server.
+ * <p>
+ * Needs a JVM that supports thread allocation counting (HotSpot does).
+ * <p>
+ * Usage: SendAllocationBenchmark [sends] [payloadSize] [BLOCKING|SELECTOR]
+ */
+public class SendAllocationBenchmark {
+	public static void main(String[] args) throws Exception {
+		int sends = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int payloadSize = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		McnpServerSocket.ReceiveEngine receiveEngine = args.length > 2 ? McnpServerSocket.ReceiveEngine.valueOf(args[2]) : McnpServerSocket.ReceiveEngine.BLOCKING;
+
+		try {
+			run(sends, payloadSize, receiveEngine);
+		} finally {
+			System.exit(0);
+		}
+	}
+
+	private static void run(int sends, int payloadSize, McnpServerSocket.ReceiveEngine receiveEngine) throws IOException, TimeoutException, InterruptedException {
+		final IMcnpMessageListener ignore = new IMcnpMessageListener() {
+			@Override
+			public void onMessage(McnpMessage mcnpMessage) {
+			}
+		};
+		try(McnpServerSocket serverSocket = new McnpServerSocket(new SystemClock(), 0, receiveEngine)) {
+			final McnpSocket[] accepted = new McnpSocket[1];
+			Thread acceptThread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						accepted[0] = serverSocket.accept(ignore);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			acceptThread.start();
+			try(McnpSocket client = new McnpSocket()) {
+				client.connect(new McnpAddress(InetAddress.getLoopbackAddress(), serverSocket.getPort()));
+				acceptThread.join();
+				try(McnpSocket serverSide = accepted[0]) {
+					McnpMessage message = new McnpMessage(new byte[payloadSize]);
+					System.out.println("client: "+measure(client, message, sends)+" bytes/send");
+					System.out.println("server ("+receiveEngine+"): "+measure(serverSide, message, sends)+" bytes/send");
+				}
+			}
+		}
+	}
+
+	private static double measure(McnpSocket socket, McnpMessage message, int sends) throws IOException {
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		//Warm up so that the measured sends run compiled code
+		for(int i = 0; i < sends; ++i) {
+			socket.send(message);
+		}
+		long before = threadMXBean.getThreadAllocatedBytes(threadId);
+		for(int i = 0; i < sends; ++i) {
+			socket.send(message);
+		}
+		long after = threadMXBean.getThreadAllocatedBytes(threadId);
+		return (after-before)/(double) sends;
+	}
+}